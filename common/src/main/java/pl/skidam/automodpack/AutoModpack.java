@@ -5,6 +5,7 @@ import pl.skidam.automodpack.client.audio.AudioManager;
 import pl.skidam.automodpack.modpack.Commands;
 import pl.skidam.automodpack.modpack.HttpServer;
 import pl.skidam.automodpack.modpack.Modpack;
+import pl.skidam.automodpack.modpack.ModpackWatcher;
 import pl.skidam.automodpack.networking.ModPackets;
 import pl.skidam.automodpack.utils.MinecraftUserName;
 
@@ -23,10 +24,14 @@ public class AutoModpack {
                 LOGGER.info("Generating modpack...");
                 Modpack.generate();
             }
+            ModpackWatcher.start();
             ModPackets.registerS2CPackets();
 
             ServerLifecycleEvents.SERVER_STARTED.register(server -> HttpServer.start());
-            ServerLifecycleEvents.SERVER_STOPPING.register(server ->  HttpServer.stop());
+            ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
+                HttpServer.stop();
+                ModpackWatcher.stop();
+            });
         } else {
             MinecraftUserName.get(); // To save the username` to variable in MinecraftUserName class for later use
             ModPackets.registerC2SPackets();
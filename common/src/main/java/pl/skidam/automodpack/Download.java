@@ -6,12 +6,18 @@ import pl.skidam.automodpack.utils.DownloadInfo;
 import pl.skidam.automodpack.utils.MinecraftUserName;
 
 import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.zip.GZIPInputStream;
 
+import static pl.skidam.automodpack.StaticVariables.LOGGER;
 import static pl.skidam.automodpack.StaticVariables.VERSION;
 
 public class Download {
@@ -20,82 +26,169 @@ public class Download {
     private boolean isDownloading;
     private long fileSize;
     private double downloadETA;
+    private int responseCode;
     private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_BUSY_RETRIES = 5;
+    private static final long MAX_BUSY_DELAY = 60_000;
 
     public void download(String downloadUrl, File outFile, DownloadInfo downloadInfo) {
+        download(downloadUrl, outFile, downloadInfo, 0);
+    }
+
+    private void download(String downloadUrl, File outFile, DownloadInfo downloadInfo, int busyRetries) {
+        // Always download to temporary file first, if transfer breaks it will be resumed from there on next try
+        File tmpFile = new File(outFile + ".tmp");
+        File validatorFile = new File(outFile + ".tmp.etag"); // ETag or Last-Modified of what's in tmp file, it survives restarts same as tmp file does
         try {
             isDownloading = false;
+
+            if (!outFile.getParentFile().exists()) {
+                outFile.getParentFile().mkdirs();
+            }
+
+            String resumeValidator = validatorFile.exists() ? Files.readString(validatorFile.toPath(), StandardCharsets.UTF_8).trim() : "";
+            if (tmpFile.exists() && resumeValidator.isEmpty()) { // we can't tell if file on host is still the same, don't glue two versions together
+                CustomFileUtils.forceDelete(tmpFile, false);
+            }
+            long resumeFrom = tmpFile.exists() ? tmpFile.length() : 0;
+
             URL url = new URL(downloadUrl);
             URLConnection connection = url.openConnection();
             connection.setRequestProperty("Content-Type", "application/octet-stream; charset=UTF-8");
-            connection.addRequestProperty("Accept-Encoding", "gzip");
+            if (resumeFrom > 0) { // ranges are counted in raw bytes so don't ask for compressed content
+                connection.addRequestProperty("Range", "bytes=" + resumeFrom + "-");
+                connection.addRequestProperty("If-Range", resumeValidator);
+            } else {
+                connection.addRequestProperty("Accept-Encoding", "gzip");
+            }
             connection.addRequestProperty("Minecraft-Username", MinecraftUserName.get());
             connection.addRequestProperty("User-Agent", "github/skidamek/automodpack/" + VERSION);
             connection.setConnectTimeout(8000);
             connection.setReadTimeout(5000);
-            fileSize = connection.getContentLengthLong();
 
+            responseCode = connection instanceof HttpURLConnection httpConnection ? httpConnection.getResponseCode() : 200;
 
-            if (!outFile.getParentFile().exists()) {
-                outFile.getParentFile().mkdirs();
+            if (responseCode == 416 && resumeFrom > 0) { // what we have is not part of this file anymore
+                CustomFileUtils.forceDelete(tmpFile, false);
+                CustomFileUtils.forceDelete(validatorFile, false);
+                download(downloadUrl, outFile, downloadInfo, busyRetries);
+                return;
             }
 
-            boolean fileAlreadyExists = outFile.exists();
+            if (responseCode == 503 && busyRetries < MAX_BUSY_RETRIES) { // host is overloaded, come back later
+                long delay = retryDelay(connection.getHeaderField("Retry-After"), busyRetries);
+                LOGGER.warn("Host is busy, retrying download of {} in {}ms", outFile.getName(), delay);
+                ((HttpURLConnection) connection).disconnect();
+                Thread.sleep(delay);
+                download(downloadUrl, outFile, downloadInfo, busyRetries + 1);
+                return;
+            }
 
-            if (outFile.exists()) {
-                CustomFileUtils.forceDelete(outFile, false);
-                outFile = new File(outFile + ".tmp");
+            boolean resumed = resumeFrom > 0 && responseCode == 206 && isResumedFrom(connection.getHeaderField("Content-Range"), resumeFrom);
+            if (!resumed) {
+                resumeFrom = 0;
             }
 
-            OutputStream outputStream = new FileOutputStream(outFile);
-            InputStream inputStream = connection.getInputStream();
-            String encoding = connection.getHeaderField("Content-Encoding");
-            if (encoding != null && encoding.equals("gzip")) {
-                inputStream = new GZIPInputStream(inputStream, BUFFER_SIZE);
+            fileSize = resumeFrom + connection.getContentLengthLong();
+
+            String validator = connection.getHeaderField("ETag");
+            if (validator == null || validator.startsWith("W/")) {
+                validator = connection.getHeaderField("Last-Modified");
+            }
+            if (validator != null && "bytes".equals(connection.getHeaderField("Accept-Ranges"))) {
+                Files.writeString(validatorFile.toPath(), validator, StandardCharsets.UTF_8);
+            } else if (validatorFile.exists()) {
+                CustomFileUtils.forceDelete(validatorFile, false);
             }
 
-            Instant start = Instant.now();
-            totalBytesRead = 0;
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-                isDownloading = true;
-                totalBytesRead += bytesRead;
-                Instant now = Instant.now();
-                Duration elapsed = Duration.between(start, now);
-                double seconds = (double) elapsed.toMillis() / 1000;
-                bytesPerSecond = totalBytesRead / seconds;
-                downloadETA = -1;
-                if (bytesPerSecond > 0) downloadETA = (fileSize - totalBytesRead) / bytesPerSecond;
-                if (downloadETA > 0) downloadETA = Math.ceil(downloadETA);
+            String encoding = connection.getHeaderField("Content-Encoding");
+            boolean gzip = encoding != null && encoding.equals("gzip");
 
+            try (InputStream inputStream = gzip ? new GZIPInputStream(connection.getInputStream(), BUFFER_SIZE) : connection.getInputStream();
+                 OutputStream outputStream = new FileOutputStream(tmpFile, resumed)) {
+                Instant start = Instant.now();
+                totalBytesRead = resumeFrom;
                 if (downloadInfo != null) {
-                    downloadInfo.setBytesDownloaded(totalBytesRead);
-                    downloadInfo.setDownloadSpeed(bytesPerSecond / 1024 / 1024);
-                    downloadInfo.setEta(downloadETA);
-                    downloadInfo.setFileSize(fileSize);
-                    downloadInfo.setBytesPerSecond(bytesPerSecond);
-
-                    ModpackUpdater.totalBytesDownloaded += bytesRead;
+                    ModpackUpdater.totalBytesDownloaded += resumeFrom; // it was taken back when previous try failed
+                }
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, bytesRead);
+                    isDownloading = true;
+                    totalBytesRead += bytesRead;
+                    Instant now = Instant.now();
+                    Duration elapsed = Duration.between(start, now);
+                    double seconds = (double) elapsed.toMillis() / 1000;
+                    bytesPerSecond = (totalBytesRead - resumeFrom) / seconds;
+                    downloadETA = -1;
+                    if (bytesPerSecond > 0) downloadETA = (fileSize - totalBytesRead) / bytesPerSecond;
+                    if (downloadETA > 0) downloadETA = Math.ceil(downloadETA);
+
+                    if (downloadInfo != null) {
+                        downloadInfo.setBytesDownloaded(totalBytesRead);
+                        downloadInfo.setDownloadSpeed(bytesPerSecond / 1024 / 1024);
+                        downloadInfo.setEta(downloadETA);
+                        downloadInfo.setFileSize(fileSize);
+                        downloadInfo.setBytesPerSecond(bytesPerSecond);
+
+                        ModpackUpdater.totalBytesDownloaded += bytesRead;
+                    }
                 }
             }
 
-            inputStream.close();
-            outputStream.close();
-
             isDownloading = false;
+            CustomFileUtils.forceDelete(validatorFile, false);
 
-            if (fileAlreadyExists) {
-                File finalFile = new File(outFile.toString().replace(".tmp", ""));
-                CustomFileUtils.copyFile(outFile, finalFile);
+            if (outFile.exists()) {
                 CustomFileUtils.forceDelete(outFile, false);
             }
+
+            try {
+                Files.move(tmpFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                CustomFileUtils.copyFile(tmpFile, outFile);
+                CustomFileUtils.forceDelete(tmpFile, false);
+            }
         } catch (IOException e) {
-            if (outFile.exists()) {
-                CustomFileUtils.forceDelete(outFile, false);
+            // Keep what we already got, next try will continue from there
+            isDownloading = false;
+            if (tmpFile.exists() && tmpFile.length() == 0) {
+                CustomFileUtils.forceDelete(tmpFile, false);
+                CustomFileUtils.forceDelete(validatorFile, false);
             }
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            isDownloading = false;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * How long to wait before asking busy host again. Waits at least what host asked for in Retry-After,
+     * plus random part growing with every retry, so clients turned away at the same time don't all come back at once.
+     */
+    public static long retryDelay(String retryAfter, int retry) {
+        long delay = 1000;
+        if (retryAfter != null) {
+            try {
+                delay = Math.max(0, Long.parseLong(retryAfter.trim())) * 1000;
+            } catch (NumberFormatException ignored) { // HTTP date, not used by our host
+            }
+        }
+        long jitter = ThreadLocalRandom.current().nextLong(Math.max(delay, 1000) * (1L << Math.min(retry, 5)) / 2 + 1);
+        return Math.min(delay + jitter, MAX_BUSY_DELAY);
+    }
+
+    // Content-Range: bytes 1000-4999/5000
+    private static boolean isResumedFrom(String contentRange, long resumeFrom) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) return false;
+        int dash = contentRange.indexOf('-');
+        if (dash == -1) return false;
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim()) == resumeFrom;
+        } catch (NumberFormatException e) {
+            return false;
         }
     }
 
@@ -118,6 +211,10 @@ public class Download {
         return fileSize;
     }
 
+    public int getResponseCode() {
+        return responseCode;
+    }
+
     public boolean isDownloading(){
         return this.isDownloading;
     }
@@ -10,13 +10,21 @@ import pl.skidam.automodpack.platforms.CurseForgeAPI;
 import pl.skidam.automodpack.platforms.ModrinthAPI;
 import pl.skidam.automodpack.utils.*;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
@@ -49,6 +57,7 @@ public class ModpackUpdater {
     public static boolean update;
     private static Jsons.ModpackContentFields serverModpackContent;
     public static Map<String, String> failedDownloads = new HashMap<>(); // <file, url>
+    private static volatile boolean sha1Endpoint = true; // false once host turns out to be too old to have it
 
     public static String getStage() {
         return alreadyDownloaded + "/" + wholeQueue;
@@ -234,6 +243,9 @@ public class ModpackUpdater {
                 }
             }
 
+            // Files we have an older version of are patched with deltas from our host, what's left is downloaded as usual
+            copyModpackContentList.removeAll(downloadDeltas(link, modpackDir, ConfigTools.loadModpackContent(modpackContentFile), copyModpackContentList));
+
             long startTime = System.currentTimeMillis();
 
 
@@ -275,6 +287,9 @@ public class ModpackUpdater {
 
             if (wholeQueue > 0) {
 
+                // Small files from our host come all at once, what doesn't make it is downloaded one by one below
+                copyModpackContentList.removeAll(downloadBatch(link, modpackDir, copyModpackContentList));
+
                 ThreadFactory threadFactoryDownloads = new ThreadFactoryBuilder()
                         .setNameFormat("AutoModpackDownload-%d")
                         .build();
@@ -296,14 +311,20 @@ public class ModpackUpdater {
 
                     File downloadFile = new File(modpackDir + File.separator + fileName);
                     String url;
+                    String fallbackUrl = null;
                     if (modpackContentField.link.startsWith("/")) { // AutoModpack host
                         url = link + modpackContentField.link;
                         url = Url.encode(url); // We need to change things like [ ] to %5B %5D etc.
+                        // Content addressed url doesn't change on rename, so caching proxies in front of the host can keep the file
+                        if (sha1Endpoint && serverSHA1 != null && !serverSHA1.isEmpty()) {
+                            fallbackUrl = url;
+                            url = link + ModpackContentTools.SHA1_PATH + serverSHA1;
+                        }
                     } else { // Other host
                         url = modpackContentField.link; // This link just must work, so we don't need to encode it
                     }
 
-                    downloadFutures.add(downloadAsync(url, downloadFile, serverSHA1));
+                    downloadFutures.add(downloadAsync(url, fallbackUrl, downloadFile, serverSHA1));
                 }
 
                 CompletableFuture.allOf(downloadFutures.toArray(new CompletableFuture[0])).get();
@@ -424,11 +445,177 @@ public class ModpackUpdater {
     }
 
 
-    private static CompletableFuture<Void> downloadAsync(String url, File downloadFile, String serverSHA1) {
-        return CompletableFuture.runAsync(() -> downloadFile(url, downloadFile, serverSHA1), DOWNLOAD_EXECUTOR);
+    // Returns items which were downloaded and verified
+    private static List<Jsons.ModpackContentFields.ModpackContentItems> downloadBatch(String link, File modpackDir, List<Jsons.ModpackContentFields.ModpackContentItems> items) {
+        List<Jsons.ModpackContentFields.ModpackContentItems> smallFiles = items.stream()
+                .filter(item -> item.link.startsWith("/") && Long.parseLong(item.size) <= BatchFormat.MAX_FILE_SIZE)
+                .toList();
+
+        List<Jsons.ModpackContentFields.ModpackContentItems> downloaded = new ArrayList<>();
+        if (smallFiles.size() < 2) return downloaded;
+
+        if (!update || !ScreenTools.getScreenString().contains("downloadscreen")) {
+            ScreenTools.setTo.download();
+        }
+        update = true;
+
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < smallFiles.size(); i += BatchFormat.MAX_FILES) {
+            List<Jsons.ModpackContentFields.ModpackContentItems> batch = smallFiles.subList(i, Math.min(i + BatchFormat.MAX_FILES, smallFiles.size()));
+            try {
+                downloadBatch(link, modpackDir, batch, downloaded);
+            } catch (Exception e) {
+                LOGGER.warn("Batch download failed, rest of the files will be downloaded one by one", e);
+                break;
+            }
+        }
+
+        LOGGER.info("Downloaded {}/{} small files in batches in {}ms", downloaded.size(), smallFiles.size(), System.currentTimeMillis() - startTime);
+        return downloaded;
     }
 
-    private static void downloadFile(String url, File downloadFile, String serverSHA1) {
+    private static void downloadBatch(String link, File modpackDir, List<Jsons.ModpackContentFields.ModpackContentItems> batch, List<Jsons.ModpackContentFields.ModpackContentItems> downloaded) throws Exception {
+        Map<String, Jsons.ModpackContentFields.ModpackContentItems> itemsByPath = new HashMap<>();
+        StringBuilder body = new StringBuilder();
+        for (Jsons.ModpackContentFields.ModpackContentItems item : batch) {
+            itemsByPath.put(item.link, item);
+            body.append(item.link).append('\n');
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(link + BatchFormat.PATH).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+        connection.setRequestProperty("Minecraft-Username", MinecraftUserName.get());
+        connection.setRequestProperty("User-Agent", "github/skidamek/automodpack/" + VERSION);
+        connection.setConnectTimeout(8000);
+        connection.setReadTimeout(5000);
+
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            outputStream.write(body.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        if (connection.getResponseCode() != 200) { // older host without batches or it's busy, files will be downloaded one by one
+            LOGGER.warn("Host didn't accept batch download, response code {}", connection.getResponseCode());
+            connection.disconnect();
+            return;
+        }
+
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(connection.getInputStream()))) {
+            BatchFormat.Entry entry;
+            while ((entry = BatchFormat.read(inputStream)) != null) {
+                Jsons.ModpackContentFields.ModpackContentItems item = itemsByPath.get(entry.path());
+                if (item == null || entry.data() == null) continue;
+
+                if (!item.sha1.equals(CustomFileUtils.getHash(entry.data(), "SHA-1"))) {
+                    LOGGER.warn("Hash of {} from batch doesn't match, it will be downloaded again", item.file);
+                    continue;
+                }
+
+                File file = new File(modpackDir + File.separator + item.file);
+                Files.createDirectories(file.toPath().getParent());
+                Files.write(file.toPath(), entry.data());
+
+                totalBytesDownloaded += entry.data().length;
+                changelogList.put(file.getName(), true);
+                alreadyDownloaded++;
+                downloaded.add(item);
+            }
+        }
+    }
+
+    // Returns items which were patched and verified
+    private static List<Jsons.ModpackContentFields.ModpackContentItems> downloadDeltas(String link, File modpackDir, Jsons.ModpackContentFields previousContent, List<Jsons.ModpackContentFields.ModpackContentItems> items) {
+        List<Jsons.ModpackContentFields.ModpackContentItems> patched = new ArrayList<>();
+        if (previousContent == null || previousContent.list == null) return patched;
+
+        Map<String, Jsons.ModpackContentFields.ModpackContentItems> previousByPath = new HashMap<>();
+        Map<String, Jsons.ModpackContentFields.ModpackContentItems> previousByModId = new HashMap<>();
+        for (Jsons.ModpackContentFields.ModpackContentItems item : previousContent.list) {
+            previousByPath.put(item.file, item);
+            if (item.modId != null) previousByModId.put(item.modId, item);
+        }
+
+        long startTime = System.currentTimeMillis();
+        long savedBytes = 0;
+        for (Jsons.ModpackContentFields.ModpackContentItems item : items) {
+            if (item.sha1 == null || item.sha1.isEmpty()) continue;
+
+            // same path, or same mod id if the file was renamed on update
+            Jsons.ModpackContentFields.ModpackContentItems old = previousByPath.get(item.file);
+            if (old == null && item.modId != null) old = previousByModId.get(item.modId);
+            if (old == null || old.sha1 == null || old.sha1.equals(item.sha1)) continue;
+
+            File oldFile = new File(modpackDir + File.separator + old.file);
+            if (!oldFile.isFile()) {
+                oldFile = new File("./" + old.file);
+                if (!oldFile.isFile()) continue;
+            }
+
+            try {
+                long deltaSize = downloadDelta(link, oldFile, old.sha1, new File(modpackDir + File.separator + item.file), item.sha1);
+                if (deltaSize == -1) continue;
+
+                savedBytes += Long.parseLong(item.size) - deltaSize;
+                changelogList.put(new File(item.file).getName(), true);
+                patched.add(item);
+            } catch (Exception e) {
+                LOGGER.warn("Failed to patch {}, it will be downloaded whole", item.file, e);
+            }
+        }
+
+        if (!patched.isEmpty()) {
+            LOGGER.info("Patched {} files with deltas in {}ms, saved {}kb", patched.size(), System.currentTimeMillis() - startTime, savedBytes / 1024);
+        }
+        return patched;
+    }
+
+    // Returns size of the delta, or -1 if host doesn't have it or our old file isn't what it was made from
+    private static long downloadDelta(String link, File oldFile, String oldSHA1, File file, String serverSHA1) throws Exception {
+        if (!oldSHA1.equals(CustomFileUtils.getHashWithRetry(oldFile, "SHA-1"))) return -1;
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(link + DeltaFormat.PATH + oldSHA1 + "/" + serverSHA1).openConnection();
+        connection.setRequestProperty("Minecraft-Username", MinecraftUserName.get());
+        connection.setRequestProperty("User-Agent", "github/skidamek/automodpack/" + VERSION);
+        connection.setConnectTimeout(8000);
+        connection.setReadTimeout(5000);
+
+        if (connection.getResponseCode() != 200) { // no delta for this file or older host without deltas
+            connection.disconnect();
+            return -1;
+        }
+
+        long deltaSize = connection.getContentLengthLong();
+        Files.createDirectories(file.toPath().getParent());
+        // old and new file might be the same file, so patch into temporary one and replace it after
+        Path tmp = Files.createTempFile(file.toPath().getParent(), file.getName(), ".tmp");
+        try {
+            try (FileChannel source = FileChannel.open(oldFile.toPath(), StandardOpenOption.READ);
+                 DataInputStream inputStream = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                 OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+                DeltaFormat.apply(source, inputStream, outputStream);
+            }
+
+            if (!serverSHA1.equals(CustomFileUtils.getHashWithRetry(tmp.toFile(), "SHA-1"))) {
+                LOGGER.warn("Hash of patched {} doesn't match, it will be downloaded whole", file.getName());
+                return -1;
+            }
+
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return deltaSize;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static CompletableFuture<Void> downloadAsync(String url, String fallbackUrl, File downloadFile, String serverSHA1) {
+        return CompletableFuture.runAsync(() -> downloadFile(url, fallbackUrl, downloadFile, serverSHA1), DOWNLOAD_EXECUTOR);
+    }
+
+    /**
+     * @param fallbackUrl tried right away if url is not found, null if there is none
+     */
+    private static void downloadFile(String url, String fallbackUrl, File downloadFile, String serverSHA1) {
         if (!update || !ScreenTools.getScreenString().contains("downloadscreen")) {
             ScreenTools.setTo.download();
         }
@@ -451,6 +638,14 @@ public class ModpackUpdater {
                 Download downloadInstance = new Download();
                 downloadInstance.download(url, downloadFile, downloadInfo);
 
+                if (downloadInstance.getResponseCode() == 404 && fallbackUrl != null) {
+                    if (url.contains(ModpackContentTools.SHA1_PATH)) {
+                        LOGGER.warn("Host doesn't serve files by hash, using file paths instead");
+                        sha1Endpoint = false;
+                    }
+                    break;
+                }
+
                 String localSHA1 = CustomFileUtils.getHashWithRetry(downloadFile, "SHA-1");
 
                 long size = downloadInstance.getFileSize();
@@ -474,6 +669,11 @@ public class ModpackUpdater {
         }
 
         downloadInfos.remove(downloadInfo);
+        if (!success && fallbackUrl != null) {
+            downloadFile(fallbackUrl, null, downloadFile, serverSHA1);
+            return;
+        }
+
         if (success) {
             LOGGER.info("{} downloaded successfully in {}ms", downloadFile.getName(), (System.currentTimeMillis() - startTime));
             changelogList.put(downloadFile.getName(), true);
@@ -483,7 +683,7 @@ public class ModpackUpdater {
             // Download from our server if we can't download from mod platforms
             String serverUrl = serverModpackContent.list.stream().filter(modpackContentField -> modpackContentField.sha1.equals(serverSHA1)).findFirst().get().link;
             if (!url.equals(serverUrl)) {
-                downloadFile(serverUrl, downloadFile, serverSHA1);
+                downloadFile(serverUrl, null, downloadFile, serverSHA1);
                 return;
             }
 
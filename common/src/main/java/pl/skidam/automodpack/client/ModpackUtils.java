@@ -1,5 +1,6 @@
 package pl.skidam.automodpack.client;
 
+import pl.skidam.automodpack.Download;
 import pl.skidam.automodpack.config.ConfigTools;
 import pl.skidam.automodpack.config.Jsons;
 import pl.skidam.automodpack.utils.CustomFileUtils;
@@ -8,6 +9,9 @@ import pl.skidam.automodpack.utils.ModpackContentTools;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.ConnectException;
 import java.net.URI;
 import java.net.http.HttpClient;
@@ -16,6 +20,7 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import static pl.skidam.automodpack.StaticVariables.LOGGER;
 import static pl.skidam.automodpack.StaticVariables.VERSION;
@@ -130,19 +135,55 @@ public class ModpackUtils {
         }
     }
 
-    public static Jsons.ModpackContentFields getServerModpackContent(String link) {
+    // modpackDir is where copy of this modpack content from last update is, if it's still the same host doesn't send it again
+    public static Jsons.ModpackContentFields getServerModpackContent(String link, File modpackDir) {
         try {
-            HttpRequest getContent = HttpRequest.newBuilder()
+            Jsons.ModpackContentFields cachedModpackContent = null;
+            if (modpackDir != null) {
+                File cachedModpackContentFile = new File(modpackDir + File.separator + "modpack-content.json");
+                if (cachedModpackContentFile.exists()) {
+                    cachedModpackContent = ConfigTools.loadModpackContent(cachedModpackContentFile);
+                }
+            }
+
+            HttpRequest.Builder getContentBuilder = HttpRequest.newBuilder()
                     .timeout(Duration.ofSeconds(3))
                     .setHeader("Content-Type", "application/json")
+                    .setHeader("Accept-Encoding", "gzip")
                     .setHeader("Minecraft-Username", MinecraftUserName.get())
                     .setHeader("User-Agent", "github/skidamek/automodpack/" + VERSION)
-                    .uri(new URI(link))
-                    .build();
+                    .uri(new URI(link));
+
+            if (cachedModpackContent != null && cachedModpackContent.modpackHash != null && !cachedModpackContent.modpackHash.isEmpty()) {
+                getContentBuilder.setHeader("If-None-Match", "\"" + cachedModpackContent.modpackHash + "\"");
+            }
 
             HttpClient httpClient = HttpClient.newHttpClient();
-            HttpResponse<String> contentResponse = httpClient.send(getContent, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
-            Jsons.ModpackContentFields serverModpackContent = GSON.fromJson(contentResponse.body(), Jsons.ModpackContentFields.class);
+            HttpResponse<InputStream> contentResponse = httpClient.send(getContentBuilder.build(), HttpResponse.BodyHandlers.ofInputStream());
+
+            for (int retry = 0; contentResponse.statusCode() == 503 && retry < 5; retry++) { // host is overloaded, come back later
+                contentResponse.body().close();
+                long delay = Download.retryDelay(contentResponse.headers().firstValue("Retry-After").orElse(null), retry);
+                LOGGER.warn("Modpack host is busy, retrying in {}ms", delay);
+                Thread.sleep(delay);
+                contentResponse = httpClient.send(getContentBuilder.build(), HttpResponse.BodyHandlers.ofInputStream());
+            }
+
+            if (contentResponse.statusCode() == 304 && cachedModpackContent != null) {
+                contentResponse.body().close();
+                LOGGER.info("Modpack content didn't change since last update");
+                return cachedModpackContent;
+            }
+
+            InputStream contentStream = contentResponse.body();
+            if (contentResponse.headers().firstValue("Content-Encoding").orElse("").equals("gzip")) {
+                contentStream = new GZIPInputStream(contentStream);
+            }
+
+            Jsons.ModpackContentFields serverModpackContent;
+            try (Reader reader = new InputStreamReader(contentStream, StandardCharsets.UTF_8)) {
+                serverModpackContent = GSON.fromJson(reader, Jsons.ModpackContentFields.class);
+            }
 
             if (serverModpackContent.list.size() < 1) {
                 LOGGER.error("Modpack content is empty!");
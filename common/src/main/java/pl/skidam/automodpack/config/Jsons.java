@@ -21,6 +21,7 @@ public class Jsons {
         public String modpackName = "";
         public boolean modpackHost = true;
         public boolean generateModpackOnStart = true;
+        public boolean generateModpackOnChanges = false; // watches host modpack and synced dirs, and updates modpack with changed files
         public List<String> syncedFiles = List.of("/mods/", "/config/");
         public List<String> excludeSyncedFiles = List.of("/mods/iDontWantThisModInModpack.jar", "/config/andThisConfigToo.json", "/mods/andAllTheseMods-*.jar");
         public List<String> allowEditsInFiles = List.of("/options.txt");
@@ -31,6 +32,27 @@ public class Jsons {
         // public boolean forceToDisableAllOtherModsOnClients = false;
         public int hostPort = 30037;
         public int hostThreads = 8;
+        public int hostSelectorThreads = 0; // 0 means one for every available core
+        public boolean hostVirtualThreads = false;
+        public boolean hostZeroCopy = true;
+        public boolean hostCompression = true;
+        public boolean hostDeltas = true; // keeps copies (hard links) of modpack files to send clients only what changed on update
+        public int hostDeltasMaxFileSizeMB = 32; // bigger files are always sent whole, making delta of a file needs 1/4 to 1/2 of its size on heap for the block index
+        public boolean hostFileCache = true;
+        public int hostFileCacheSizeMB = 64;
+        public int hostFileCacheMaxFileSizeKB = 256;
+        public boolean hostMappedFiles = false;
+        public int hostMappedFilesSizeMB = 1024; // address space, files are in page cache not on heap
+        public int hostKeepAliveTimeout = 15;
+        public int hostMaxRequestsPerConnection = 1000;
+        public int hostBandwidthLimitKBps = 0; // whole host, 0 means no limit
+        public int hostConnectionBandwidthLimitKBps = 0; // every connection, 0 means no limit
+        public int hostMaxConnections = 256;
+        public int hostMaxTransfers = 64;
+        public int hostMaxQueuedRequests = 128;
+        public boolean hostMetrics = false;
+        public int hostMetricsPort = 0; // 0 means /metrics is served on hostPort
+        public String hostMetricsToken = ""; // required as "Authorization: Bearer <token>" if set
         public String hostIp = "";
         public String hostLocalIp = "";
         public String externalModpackHostLink = "";
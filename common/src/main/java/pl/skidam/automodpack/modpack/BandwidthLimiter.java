@@ -0,0 +1,71 @@
+package pl.skidam.automodpack.modpack;
+
+import static pl.skidam.automodpack.StaticVariables.serverConfig;
+
+/**
+ * Host upload limits, one for the whole host and one for every connection.
+ * Each write gets at most a small chunk from the shared bucket, connections waiting for tokens are resumed in turns,
+ * so one fast client can't take the whole shared limit for itself.
+ */
+
+public class BandwidthLimiter {
+    public static final long UNLIMITED = Long.MAX_VALUE;
+    private static final long CHUNK = 16 * 1024;
+    private static volatile TokenBucket global = null;
+    private final TokenBucket connection;
+
+    // Called on host start, limits are taken from config
+    public static void init() {
+        global = bucket(serverConfig.hostBandwidthLimitKBps);
+    }
+
+    public BandwidthLimiter() {
+        this.connection = bucket(serverConfig.hostConnectionBandwidthLimitKBps);
+    }
+
+    private static TokenBucket bucket(int limitKBps) {
+        if (limitKBps <= 0) return null;
+        long rate = limitKBps * 1024L;
+        // about 100ms worth of data, but at least one chunk so even very low limits make progress
+        return new TokenBucket(rate, Math.max(rate / 10, CHUNK));
+    }
+
+    /**
+     * Takes tokens for the next write, every taken byte has to be settled with {@link #release(long, long)}.
+     * @return bytes which can be written, 0 if connection has to wait, {@link #UNLIMITED} if there are no limits
+     */
+    public long acquire() {
+        TokenBucket global = BandwidthLimiter.global;
+        if (global == null && connection == null) return UNLIMITED;
+
+        long granted = CHUNK;
+        if (connection != null) {
+            granted = connection.take(granted);
+        }
+        if (granted > 0 && global != null) {
+            long globalGranted = global.take(granted);
+            if (connection != null) {
+                connection.giveBack(granted - globalGranted);
+            }
+            granted = globalGranted;
+        }
+        return granted;
+    }
+
+    // Returns tokens which weren't used because socket couldn't take more
+    public void release(long granted, long written) {
+        if (granted == UNLIMITED || written >= granted) return;
+        long unused = granted - written;
+        TokenBucket global = BandwidthLimiter.global;
+        if (global != null) global.giveBack(unused);
+        if (connection != null) connection.giveBack(unused);
+    }
+
+    public long nanosUntilAvailable() {
+        TokenBucket global = BandwidthLimiter.global;
+        long wait = 0;
+        if (connection != null) wait = connection.nanosUntilAvailable(CHUNK);
+        if (global != null) wait = Math.max(wait, global.nanosUntilAvailable(CHUNK));
+        return wait;
+    }
+}
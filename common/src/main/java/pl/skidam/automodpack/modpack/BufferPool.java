@@ -0,0 +1,81 @@
+package pl.skidam.automodpack.modpack;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direct buffers shared by host reads and file copies.
+ * Allocating direct memory is slow and it's freed only on GC, so buffers are reused instead.
+ * Each thread keeps a few buffers for itself (selector thread does most of the work), the rest goes to a bounded shared pool,
+ * buffers which don't fit anywhere are left for GC.
+ */
+
+public class BufferPool {
+    public static final int BUFFER_SIZE = 32 * 1024;
+    private static final int THREAD_CACHE_SIZE = 4;
+    private static final int SHARED_POOL_SIZE = 64;
+    // virtual threads live only as long as one connection, buffers cached on them would be lost
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>> threadCache = ThreadLocal.withInitial(() -> isVirtual(Thread.currentThread()) ? null : new ArrayDeque<>());
+    private static final ArrayBlockingQueue<ByteBuffer> sharedPool = new ArrayBlockingQueue<>(SHARED_POOL_SIZE);
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final AtomicLong outstanding = new AtomicLong();
+
+    // Returns cleared buffer, has to be given back with release() once it's not used anymore
+    public static ByteBuffer acquire() {
+        ArrayDeque<ByteBuffer> cache = threadCache.get();
+        ByteBuffer buffer = cache != null ? cache.poll() : null;
+        if (buffer == null) {
+            buffer = sharedPool.poll();
+        }
+
+        if (buffer != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        outstanding.incrementAndGet();
+        return buffer.clear();
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        outstanding.decrementAndGet();
+        buffer.clear();
+
+        ArrayDeque<ByteBuffer> cache = threadCache.get();
+        if (cache != null && cache.size() < THREAD_CACHE_SIZE) {
+            cache.push(buffer);
+            return;
+        }
+        sharedPool.offer(buffer);
+    }
+
+    // Thread.isVirtual() is in Java 21+
+    private static boolean isVirtual(Thread thread) {
+        try {
+            Method isVirtual = Thread.class.getMethod("isVirtual");
+            return (boolean) isVirtual.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static long getOutstanding() {
+        return outstanding.get();
+    }
+}
@@ -22,6 +22,10 @@ public class Commands {
                         .then(literal("generate")
                                 .requires((source) -> source.hasPermissionLevel(3))
                                 .executes(Commands::generateModpack)
+                                .then(literal("full")
+                                        .requires((source) -> source.hasPermissionLevel(3))
+                                        .executes(Commands::generateFullModpack)
+                                )
                         )
                         .then(literal("host")
                                 .requires((source) -> source.hasPermissionLevel(3))
@@ -132,6 +136,21 @@ public class Commands {
                                 .formatted(statusColor)
                         )
                 ), false);
+        context.getSource().sendFeedback(TextHelper.literal("Buffer pool")
+                .formatted(Formatting.GREEN)
+                .append(TextHelper.literal(" - hits: " + BufferPool.getHits() + ", misses: " + BufferPool.getMisses() + ", outstanding: " + BufferPool.getOutstanding())
+                        .formatted(Formatting.WHITE)
+                ), false);
+        context.getSource().sendFeedback(TextHelper.literal("File cache")
+                .formatted(Formatting.GREEN)
+                .append(TextHelper.literal(" - hits: " + HotFileCache.getHits() + ", misses: " + HotFileCache.getMisses() + ", files: " + HotFileCache.getCount() + ", size: " + HotFileCache.getSize() / 1024 + "KB")
+                        .formatted(Formatting.WHITE)
+                ), false);
+        context.getSource().sendFeedback(TextHelper.literal("Mapped files")
+                .formatted(Formatting.GREEN)
+                .append(TextHelper.literal(" - hits: " + MappedFileCache.getHits() + ", misses: " + MappedFileCache.getMisses() + ", files: " + MappedFileCache.getCount() + ", size: " + MappedFileCache.getSize() / 1024 / 1024 + "MB")
+                        .formatted(Formatting.WHITE)
+                ), false);
         return Command.SINGLE_SUCCESS;
     }
 
@@ -141,7 +160,7 @@ public class Commands {
                 .append(TextHelper.literal(" - " + VERSION)
                         .formatted(Formatting.WHITE)
                 ), false);
-        context.getSource().sendFeedback(TextHelper.literal("/automodpack generate")
+        context.getSource().sendFeedback(TextHelper.literal("/automodpack generate [full]")
                 .formatted(Formatting.YELLOW), false);
         context.getSource().sendFeedback(TextHelper.literal("/automodpack host start/stop/restart")
                 .formatted(Formatting.YELLOW), false);
@@ -151,11 +170,20 @@ public class Commands {
     }
 
     private static int generateModpack(CommandContext<ServerCommandSource> context) {
+        return generateModpack(context, false);
+    }
+
+    // Hashes every file again, in case cached hashes can't be trusted (e.g. files changed by something keeping their modification time)
+    private static int generateFullModpack(CommandContext<ServerCommandSource> context) {
+        return generateModpack(context, true);
+    }
+
+    private static int generateModpack(CommandContext<ServerCommandSource> context, boolean full) {
         CompletableFuture.runAsync(() -> {
             context.getSource().sendFeedback(TextHelper.literal("Generating Modpack...")
                             .formatted(Formatting.YELLOW),
                     true);
-            Modpack.generate();
+            Modpack.generate(full);
             context.getSource().sendFeedback(TextHelper.literal("Modpack generated!")
                             .formatted(Formatting.GREEN),
                     true);
@@ -0,0 +1,147 @@
+package pl.skidam.automodpack.modpack;
+
+import pl.skidam.automodpack.config.Jsons;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static pl.skidam.automodpack.StaticVariables.*;
+import static pl.skidam.automodpack.modpack.Modpack.hostModpackDir;
+
+/**
+ * Gzip copies of compressible modpack files, made once on generation so host can send them without compressing on the fly.
+ */
+
+public class CompressedVariants {
+    public static final Path cacheDir = Path.of(automodpackDir + File.separator + "host-cache" + File.separator + "gzip");
+    private static final int MIN_SIZE = 512; // smaller files wouldn't gain anything
+    private static final double MAX_RATIO = 0.9; // keep variant only if it's at least 10% smaller
+    private static final String SKIPPED_EXTENSION = ".skip";
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "jar", "zip", "gz", "tgz", "xz", "bz2", "7z", "rar", "zst", "lz4", "br",
+            "png", "jpg", "jpeg", "gif", "webp", "ogg", "mp3", "mp4", "webm"
+    );
+
+    /**
+     * @param keep variants which mustn't be removed even if they aren't used anymore (previous generation might still be sending them)
+     * @return <request path, gzip file>
+     */
+    public static Map<String, File> generate(List<Jsons.ModpackContentFields.ModpackContentItems> list, Set<File> keep) {
+        if (!serverConfig.hostCompression) {
+            return Map.of();
+        }
+
+        long start = System.currentTimeMillis();
+        Map<String, File> variants = new HashMap<>();
+        Set<File> used = new HashSet<>(keep);
+
+        try {
+            Files.createDirectories(cacheDir);
+
+            for (Jsons.ModpackContentFields.ModpackContentItems item : list) {
+                if (!isCompressible(item.file) || item.sha1 == null) continue;
+
+                File source = new File(hostModpackDir + File.separator + item.file);
+                if (!source.isFile()) {
+                    source = new File("./" + item.file);
+                    if (!source.isFile()) continue;
+                }
+
+                // named by hash so unchanged files don't need to be compressed again,
+                // files which didn't compress well get an empty marker so they aren't tried again either
+                File variant = cacheDir.resolve(item.sha1 + ".gz").toFile();
+                File skipped = cacheDir.resolve(item.sha1 + SKIPPED_EXTENSION).toFile();
+                if (skipped.isFile()) {
+                    used.add(skipped);
+                } else if (variant.isFile() || compress(source, variant)) {
+                    variants.put(item.file, variant);
+                } else if (source.length() >= MIN_SIZE) { // smaller ones are skipped without reading them anyway
+                    skipped.createNewFile();
+                    used.add(skipped);
+                }
+            }
+
+            used.addAll(variants.values());
+            removeUnused(used);
+        } catch (IOException e) {
+            LOGGER.error("Failed to prepare compressed modpack files", e);
+        }
+
+        LOGGER.info("Prepared {} compressed modpack files, took {}ms", variants.size(), System.currentTimeMillis() - start);
+        return Collections.unmodifiableMap(variants);
+    }
+
+    // In memory variant, null if compression is disabled or it wouldn't help
+    public static byte[] compress(byte[] data) throws IOException {
+        if (!serverConfig.hostCompression || data.length < MIN_SIZE) return null;
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4);
+        try (OutputStream outputStream = new GZIPOutputStream(compressed) {
+            { def.setLevel(Deflater.BEST_COMPRESSION); }
+        }) {
+            outputStream.write(data);
+        }
+        return compressed.size() > data.length * MAX_RATIO ? null : compressed.toByteArray();
+    }
+
+    public static boolean isCompressible(String file) {
+        String name = file.substring(file.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+        int dot = name.lastIndexOf('.');
+        return dot == -1 || !COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1));
+    }
+
+    // Returns false if file is too small or doesn't compress well enough to be worth it
+    private static boolean compress(File source, File variant) throws IOException {
+        long size = source.length();
+        if (size < MIN_SIZE) {
+            Files.deleteIfExists(variant.toPath());
+            return false;
+        }
+
+        // Write to temporary file and move it, host might be sending the old variant right now
+        Path tmp = Files.createTempFile(cacheDir, variant.getName(), ".tmp");
+        try {
+            try (InputStream inputStream = Files.newInputStream(source.toPath());
+                 OutputStream outputStream = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024) {
+                     { def.setLevel(Deflater.BEST_COMPRESSION); }
+                 }) {
+                inputStream.transferTo(outputStream);
+            }
+
+            if (Files.size(tmp) > size * MAX_RATIO) {
+                Files.deleteIfExists(variant.toPath());
+                return false;
+            }
+
+            Files.move(tmp, variant.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void removeUnused(Collection<File> used) throws IOException {
+        Set<Path> usedPaths = new HashSet<>();
+        for (File file : used) {
+            usedPaths.add(file.toPath().toAbsolutePath().normalize());
+        }
+
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            for (Path file : files.toList()) {
+                if (!usedPaths.contains(file.toAbsolutePath().normalize())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
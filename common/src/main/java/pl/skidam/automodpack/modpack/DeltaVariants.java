@@ -0,0 +1,196 @@
+package pl.skidam.automodpack.modpack;
+
+import pl.skidam.automodpack.config.Jsons;
+import pl.skidam.automodpack.utils.CustomFileUtils;
+import pl.skidam.automodpack.utils.DeltaFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static pl.skidam.automodpack.StaticVariables.*;
+import static pl.skidam.automodpack.modpack.Modpack.hostModpackDir;
+
+/**
+ * Binary deltas from previous versions of modpack files, so clients which have the old version download just the difference.
+ * Files of the current generation are kept in host-cache/files (named by hash, hard linked, never copied),
+ * on the next generation files which changed (same path, or same mod id if the file was renamed) are diffed against them.
+ */
+
+public class DeltaVariants {
+    public static final Path filesDir = Path.of(automodpackDir + File.separator + "host-cache" + File.separator + "files");
+    public static final Path cacheDir = Path.of(automodpackDir + File.separator + "host-cache" + File.separator + "delta");
+    private static final long MIN_SIZE = 64 * 1024; // smaller files are cheap to download whole
+    private static final double MAX_RATIO = 0.5; // keep delta only if it's at most half of the new file
+    private static final String EXTENSION = ".delta";
+
+    /**
+     * Called on generation before new modpack content is saved.
+     * @param previous modpack content clients might have now, null if there is none
+     * @return <"old sha1/new sha1", delta file> of deltas which end in a file of given list
+     */
+    public static Map<String, File> generate(Jsons.ModpackContentFields previous, List<Jsons.ModpackContentFields.ModpackContentItems> list) {
+        if (!serverConfig.hostDeltas) {
+            return Map.of();
+        }
+
+        long start = System.currentTimeMillis();
+        int created = 0;
+
+        try {
+            Files.createDirectories(filesDir);
+            Files.createDirectories(cacheDir);
+
+            if (previous != null && previous.list != null) {
+                Map<String, Jsons.ModpackContentFields.ModpackContentItems> previousByPath = new HashMap<>();
+                Map<String, Jsons.ModpackContentFields.ModpackContentItems> previousByModId = new HashMap<>();
+                for (Jsons.ModpackContentFields.ModpackContentItems item : previous.list) {
+                    previousByPath.put(item.file, item);
+                    if (item.modId != null) previousByModId.put(item.modId, item);
+                }
+
+                for (Jsons.ModpackContentFields.ModpackContentItems item : list) {
+                    Jsons.ModpackContentFields.ModpackContentItems old = previousVersion(item, previousByPath, previousByModId);
+                    if (old == null || old.sha1 == null || item.sha1 == null || old.sha1.equals(item.sha1)) continue;
+
+                    File source = filesDir.resolve(old.sha1).toFile();
+                    File target = modpackFile(item);
+                    if (!source.isFile() || target == null || !isEligible(target.length())) continue;
+
+                    Path delta = cacheDir.resolve(old.sha1 + "-" + item.sha1 + EXTENSION);
+                    if (Files.isRegularFile(delta)) continue;
+
+                    if (create(source, old.sha1, target, item.sha1, delta)) created++;
+                }
+            }
+
+            keepCurrentFiles(list);
+        } catch (Exception e) {
+            LOGGER.error("Failed to prepare modpack file deltas", e);
+        }
+
+        Map<String, File> deltas = find(list);
+        LOGGER.info("Prepared {} modpack file deltas ({} new), took {}ms", deltas.size(), created, System.currentTimeMillis() - start);
+        return deltas;
+    }
+
+    private static Jsons.ModpackContentFields.ModpackContentItems previousVersion(Jsons.ModpackContentFields.ModpackContentItems item,
+                                                                                 Map<String, Jsons.ModpackContentFields.ModpackContentItems> previousByPath,
+                                                                                 Map<String, Jsons.ModpackContentFields.ModpackContentItems> previousByModId) {
+        Jsons.ModpackContentFields.ModpackContentItems old = previousByPath.get(item.file);
+        if (old == null && item.modId != null) {
+            old = previousByModId.get(item.modId); // mods are usually renamed on update, e.g. mod-1.0.jar -> mod-1.1.jar
+        }
+        return old;
+    }
+
+    // Returns false if delta wouldn't save enough to be worth it
+    private static boolean create(File source, String sourceSha1, File target, String targetSha1, Path delta) throws Exception {
+        if (!isEligible(source.length())) return false;
+        // kept copy is a hard link, so it could have been changed in place since
+        if (!sourceSha1.equals(CustomFileUtils.getHash(source, "SHA-1"))) return false;
+        if (!targetSha1.equals(CustomFileUtils.getHash(target, "SHA-1"))) return false;
+
+        // both files are mapped, not read, generation runs on a live server and they can be big
+        Path tmp = Files.createTempFile(cacheDir, delta.getFileName().toString(), ".tmp");
+        try (FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel targetChannel = FileChannel.open(target.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer sourceMapping = sourceChannel.map(FileChannel.MapMode.READ_ONLY, 0, sourceChannel.size());
+            MappedByteBuffer targetMapping = targetChannel.map(FileChannel.MapMode.READ_ONLY, 0, targetChannel.size());
+            boolean created;
+            try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+                created = DeltaFormat.create(sourceMapping, targetMapping, outputStream, (long) (targetChannel.size() * MAX_RATIO));
+            } catch (InternalError e) { // file was truncated while mapped
+                throw new IOException("File changed while making delta: " + target, e);
+            } finally {
+                CustomFileUtils.unmap(sourceMapping);
+                CustomFileUtils.unmap(targetMapping);
+            }
+            if (!created) return false;
+
+            Files.move(tmp, delta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Keeps files of this generation for the next one to diff against, removes the rest
+    private static void keepCurrentFiles(List<Jsons.ModpackContentFields.ModpackContentItems> list) throws IOException {
+        Set<String> used = new HashSet<>();
+        for (Jsons.ModpackContentFields.ModpackContentItems item : list) {
+            if (item.sha1 == null) continue;
+            File file = modpackFile(item);
+            if (file == null || !isEligible(file.length())) continue;
+
+            Path copy = filesDir.resolve(item.sha1);
+            used.add(copy.getFileName().toString());
+            if (Files.isRegularFile(copy)) continue;
+
+            try {
+                Files.createLink(copy, file.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                // copying instead would silently duplicate the whole modpack on disk
+                LOGGER.warn("Can't hard link modpack files into {} (different file system?), next generation won't have deltas from the rest of them", filesDir, e);
+                used.remove(copy.getFileName().toString());
+                break;
+            }
+        }
+
+        try (Stream<Path> files = Files.list(filesDir)) {
+            for (Path file : files.toList()) {
+                if (!used.contains(file.getFileName().toString())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    // Deltas into current files, others are removed
+    private static Map<String, File> find(List<Jsons.ModpackContentFields.ModpackContentItems> list) {
+        Set<String> current = new HashSet<>();
+        for (Jsons.ModpackContentFields.ModpackContentItems item : list) {
+            if (item.sha1 != null) current.add(item.sha1);
+        }
+
+        Map<String, File> deltas = new HashMap<>();
+        if (!Files.isDirectory(cacheDir)) return deltas;
+
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                int dash = name.indexOf('-');
+                if (name.endsWith(EXTENSION) && dash != -1 && current.contains(name.substring(dash + 1, name.length() - EXTENSION.length()))) {
+                    deltas.put(name.substring(0, dash) + "/" + name.substring(dash + 1, name.length() - EXTENSION.length()), file.toFile());
+                } else {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to list modpack file deltas", e);
+        }
+        return Collections.unmodifiableMap(deltas);
+    }
+
+    private static boolean isEligible(long size) {
+        return size >= MIN_SIZE && size <= serverConfig.hostDeltasMaxFileSizeMB * 1024L * 1024L;
+    }
+
+    private static File modpackFile(Jsons.ModpackContentFields.ModpackContentItems item) {
+        File file = new File(hostModpackDir + File.separator + item.file);
+        if (!file.isFile()) {
+            file = new File("./" + item.file);
+            if (!file.isFile()) return null;
+        }
+        return file;
+    }
+}
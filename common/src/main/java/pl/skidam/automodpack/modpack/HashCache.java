@@ -0,0 +1,136 @@
+package pl.skidam.automodpack.modpack;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static pl.skidam.automodpack.StaticVariables.*;
+import static pl.skidam.automodpack.config.ConfigTools.GSON;
+
+/**
+ * Hashes and mod info of modpack files from previous generations, so files which didn't change aren't hashed and inspected again.
+ * File is considered unchanged if its path, size, modification time and file key (inode where available) are the same.
+ */
+
+public class HashCache {
+    public static final File cacheFile = new File(automodpackDir + File.separator + "host-cache" + File.separator + "hashes.json");
+    private static final int FORMAT_VERSION = 1; // bump when anything stored here is computed differently
+    private static final long RACY_TIME = 2000; // files modified this recently might change again within the same mtime
+    private static Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final Map<String, Entry> seen = new ConcurrentHashMap<>();
+
+    public static class Fields {
+        public int formatVersion;
+        public Map<String, Entry> files;
+    }
+
+    public static class Entry {
+        public long size;
+        public long lastModified;
+        public String fileKey;
+        public String sha1;
+        public String murmur;
+        public String modId;
+        public String version;
+        public String type;
+
+        public Entry(String sha1, String murmur, String modId, String version, String type) {
+            this.sha1 = sha1;
+            this.murmur = murmur;
+            this.modId = modId;
+            this.version = version;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Called before generation.
+     * @param full forget everything cached, every file is hashed again and cache is rebuilt
+     */
+    public static void load(boolean full) {
+        seen.clear();
+        entries = new ConcurrentHashMap<>();
+        if (full || !cacheFile.isFile()) return;
+
+        try (InputStreamReader reader = new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8)) {
+            Fields fields = GSON.fromJson(IOUtils.toString(reader), Fields.class);
+            if (fields != null && fields.formatVersion == FORMAT_VERSION && fields.files != null) {
+                entries.putAll(fields.files);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Couldn't load modpack hash cache, all files will be hashed again", e);
+        }
+    }
+
+    // Returns cached entry if file didn't change since, null otherwise
+    public static Entry get(File file, BasicFileAttributes attributes) {
+        String key = key(file);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.size != attributes.size() || entry.lastModified != attributes.lastModifiedTime().toMillis()
+                || !Objects.equals(entry.fileKey, fileKey(attributes))) {
+            return null;
+        }
+        seen.put(key, entry);
+        return entry;
+    }
+
+    public static void put(File file, BasicFileAttributes attributes, Entry entry) {
+        if (entry.sha1 == null) return;
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        // file might still be being written, change within the same mtime wouldn't be noticed
+        if (System.currentTimeMillis() - lastModified < RACY_TIME) return;
+
+        entry.size = attributes.size();
+        entry.lastModified = lastModified;
+        entry.fileKey = fileKey(attributes);
+        seen.put(key(file), entry);
+    }
+
+    /**
+     * Called after generation.
+     * @param prune keep only files seen in this generation, false if only some files were looked at
+     */
+    public static void save(boolean prune) {
+        if (prune) {
+            entries = new ConcurrentHashMap<>(seen);
+        } else {
+            entries.putAll(seen);
+        }
+
+        Fields fields = new Fields();
+        fields.formatVersion = FORMAT_VERSION;
+        fields.files = entries;
+
+        try {
+            Files.createDirectories(cacheFile.getParentFile().toPath());
+            Path tmp = Files.createTempFile(cacheFile.getParentFile().toPath(), cacheFile.getName(), ".tmp");
+            try {
+                Files.writeString(tmp, GSON.toJson(fields), StandardCharsets.UTF_8);
+                Files.move(tmp, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Couldn't save modpack hash cache", e);
+        }
+    }
+
+    private static String key(File file) {
+        return file.toPath().normalize().toString().replace("\\", "/");
+    }
+
+    private static String fileKey(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return fileKey == null ? null : fileKey.toString();
+    }
+}
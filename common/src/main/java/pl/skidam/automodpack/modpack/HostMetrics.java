@@ -0,0 +1,150 @@
+package pl.skidam.automodpack.modpack;
+
+import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static pl.skidam.automodpack.StaticVariables.serverConfig;
+
+/**
+ * Host counters and latency histograms, served at /metrics in Prometheus text format.
+ * Everything is updated from the request and write paths, so it's only adders, no locks.
+ */
+
+public class HostMetrics {
+    public static final String PATH = "/metrics";
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PREFIX = "automodpack_host_";
+    public static final LongAdder requests = new LongAdder();
+    public static final LongAdder rejectedRequests = new LongAdder(); // executor queue was full
+    public static final LongAdder acceptedConnections = new LongAdder();
+    public static final LongAdder rejectedConnections = new LongAdder(); // over hostMaxConnections
+    public static final LongAdder bytesSent = new LongAdder();
+    private static final Map<Integer, LongAdder> responses = new ConcurrentHashMap<>(); // <status code, count>
+    private static final Histogram timeToFirstByte = new Histogram();
+    private static final Histogram responseTime = new Histogram();
+
+    public static boolean hasOwnPort() {
+        return serverConfig.hostMetricsPort > 0 && serverConfig.hostMetricsPort != serverConfig.hostPort;
+    }
+
+    // No token in config means anyone who can reach the endpoint can read it
+    public static boolean isAuthorized(String authorization) {
+        String token = serverConfig.hostMetricsToken;
+        if (token == null || token.isEmpty()) return true;
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) return false;
+        byte[] expected = token.getBytes(StandardCharsets.UTF_8);
+        byte[] given = authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, given); // constant time
+    }
+
+    public static void firstByteSent(long requestReceivedAt) {
+        timeToFirstByte.observe(System.nanoTime() - requestReceivedAt);
+    }
+
+    /**
+     * @param requestReceivedAt 0 if response wasn't answer to a parsed request (e.g. host was too busy to look at it)
+     */
+    public static void responseSent(int status, long requestReceivedAt) {
+        responses.computeIfAbsent(status, code -> new LongAdder()).increment();
+        if (requestReceivedAt != 0) {
+            responseTime.observe(System.nanoTime() - requestReceivedAt);
+        }
+    }
+
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "requests_total", "Requests received by the host.", requests.sum());
+        counter(out, "requests_rejected_total", "Requests answered with 503 because all host threads were busy and the queue was full.", rejectedRequests.sum());
+        counter(out, "connections_accepted_total", "Connections accepted by the host.", acceptedConnections.sum());
+        counter(out, "connections_rejected_total", "Connections turned away because of hostMaxConnections.", rejectedConnections.sum());
+        counter(out, "sent_bytes_total", "Bytes written to clients, headers included.", bytesSent.sum());
+
+        header(out, "responses_total", "Responses fully sent, by status code.", "counter");
+        for (Map.Entry<Integer, LongAdder> entry : new TreeMap<>(responses).entrySet()) {
+            out.append(PREFIX).append("responses_total{code=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+
+        timeToFirstByte.render(out, "time_to_first_byte_seconds", "Time from receiving a request to sending first byte of its response.");
+        responseTime.render(out, "response_duration_seconds", "Time from receiving a request to sending last byte of its response.");
+
+        gauge(out, "modpack_generation", "Modpack snapshot currently served, bumped on every generation.", RoutingTable.current().generation());
+        gauge(out, "open_connections", "Connections currently open.", HttpServer.getOpenConnections());
+        gauge(out, "active_transfers", "Responses currently sending a file or a batch.", HttpResponse.getActiveTransfers());
+        gauge(out, "file_cache_bytes", "Size of files kept in memory.", HotFileCache.getSize());
+        gauge(out, "mapped_files", "Files currently mapped.", MappedFileCache.getCount());
+        gauge(out, "mapped_files_bytes", "Size of files currently mapped.", MappedFileCache.getSize());
+        gauge(out, "buffer_pool_outstanding", "Pooled buffers currently in use.", BufferPool.getOutstanding());
+
+        // Saturation of hostThreads, active close to max with queued tasks growing means host needs more threads
+        ExecutorService executor = HttpServer.HTTPServerExecutor;
+        if (executor instanceof ThreadPoolExecutor pool) {
+            gauge(out, "threads_max", "Host threads handling requests (hostThreads).", pool.getMaximumPoolSize());
+            gauge(out, "threads_active", "Host threads currently busy.", pool.getActiveCount());
+            gauge(out, "queued_tasks", "Requests waiting for a free host thread.", pool.getQueue().size());
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    // Fixed buckets from 1ms to a minute, every bucket is its own adder so observing never contends on one counter
+    private static class Histogram {
+        private static final double[] BOUNDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 }; // seconds
+        private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1]; // last one is +Inf
+        private final LongAdder sumNanos = new LongAdder();
+
+        static {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                BOUNDS_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void observe(long nanos) {
+            int i = 0;
+            while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) i++;
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        // Prometheus buckets are cumulative
+        private void render(StringBuilder out, String name, String help) {
+            header(out, name, help, "histogram");
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                count += buckets[i].sum();
+                String le = i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf";
+                out.append(PREFIX).append(name).append("_bucket{le=\"").append(le).append("\"} ").append(count).append('\n');
+            }
+            out.append(PREFIX).append(name).append("_sum ").append(String.format(Locale.ROOT, "%.6f", sumNanos.sum() / 1e9)).append('\n');
+            out.append(PREFIX).append(name).append("_count ").append(count).append('\n');
+        }
+    }
+}
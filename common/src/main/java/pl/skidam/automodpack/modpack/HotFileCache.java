@@ -0,0 +1,89 @@
+package pl.skidam.automodpack.modpack;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static pl.skidam.automodpack.StaticVariables.serverConfig;
+
+/**
+ * Small files host sends most often (modpack content and configs) kept in memory with their response header,
+ * so sending them again doesn't need to open and read the file.
+ * Entries are keyed by request path (and representation), as headers differ between routes of the same file.
+ * Least recently used files are evicted once the cache gets over its size.
+ */
+
+public class HotFileCache {
+    private static final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // access order, eldest is least recently used
+    private static long size = 0;
+    private static long generation = 0; // snapshot entries belong to, files read for another snapshot aren't cached nor returned
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    /**
+     * @param header response header without connection headers, these depend on the request
+     */
+    public record Entry(byte[] header, byte[] body) {
+        public long size() {
+            return header.length + body.length;
+        }
+    }
+
+    public static boolean isCacheable(long fileSize) {
+        return serverConfig.hostFileCache && fileSize <= serverConfig.hostFileCacheMaxFileSizeKB * 1024L && fileSize <= maxSize();
+    }
+
+    public static synchronized Entry get(String cacheKey, long snapshotGeneration) {
+        Entry entry = snapshotGeneration == generation ? entries.get(cacheKey) : null;
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+
+    public static synchronized void put(String cacheKey, Entry entry, long snapshotGeneration) {
+        if (snapshotGeneration != generation || entry.size() > maxSize()) return;
+
+        Entry previous = entries.put(cacheKey, entry);
+        if (previous != null) {
+            size -= previous.size();
+        }
+        size += entry.size();
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize() && iterator.hasNext()) {
+            size -= iterator.next().size();
+            iterator.remove();
+        }
+    }
+
+    // Called on modpack generation before the snapshot is published, cached headers (etags, dates) may be outdated
+    public static synchronized void clear(long snapshotGeneration) {
+        entries.clear();
+        size = 0;
+        generation = snapshotGeneration;
+    }
+
+    private static long maxSize() {
+        return serverConfig.hostFileCacheSizeMB * 1024L * 1024L;
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static synchronized int getCount() {
+        return entries.size();
+    }
+
+    public static synchronized long getSize() {
+        return size;
+    }
+}
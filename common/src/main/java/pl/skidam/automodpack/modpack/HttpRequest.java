@@ -0,0 +1,26 @@
+package pl.skidam.automodpack.modpack;
+
+/**
+ * Request parsed by {@link HttpRequestParser}, only with the headers host cares about.
+ * @param error status code to answer with if request couldn't be parsed, 0 if it's fine
+ * @param receivedAt {@link System#nanoTime()} when the whole request was received
+ */
+
+public record HttpRequest(int error, String method, String path, boolean http11, boolean connectionClose, boolean connectionKeepAlive,
+                          String range, String ifRange, String ifNoneMatch, String authorization, boolean acceptsGzip, long contentLength, byte[] body,
+                          long receivedAt) {
+
+    public static HttpRequest invalid(int error) {
+        return new HttpRequest(error, null, null, false, true, false, null, null, null, null, false, 0, null, System.nanoTime());
+    }
+
+    public HttpRequest withBody(byte[] body) {
+        return new HttpRequest(error, method, path, http11, connectionClose, connectionKeepAlive, range, ifRange, ifNoneMatch, authorization, acceptsGzip, contentLength, body, System.nanoTime());
+    }
+
+    // HTTP/1.1 connections are persistent unless client says otherwise, HTTP/1.0 ones only if client asks for it
+    public boolean keepAlive() {
+        if (error != 0 || connectionClose) return false;
+        return http11 || connectionKeepAlive;
+    }
+}
@@ -0,0 +1,337 @@
+package pl.skidam.automodpack.modpack;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.x request parser, one per connection.
+ * Bytes are fed as they come from the socket and kept until the whole header block (and body, if there is one) is there,
+ * so requests split across many reads (or many pipelined requests in one read) are parsed correctly.
+ * Header names are matched on raw bytes, strings are made only for values host actually uses.
+ */
+
+public class HttpRequestParser {
+    public static final int MAX_HEADER_SIZE = 8 * 1024;
+    public static final int MAX_BODY_SIZE = 256 * 1024;
+    private static final int INITIAL_SIZE = 1024;
+    private static final byte[] CONNECTION = bytes("connection");
+    private static final byte[] RANGE = bytes("range");
+    private static final byte[] IF_RANGE = bytes("if-range");
+    private static final byte[] IF_NONE_MATCH = bytes("if-none-match");
+    private static final byte[] AUTHORIZATION = bytes("authorization");
+    private static final byte[] ACCEPT_ENCODING = bytes("accept-encoding");
+    private static final byte[] CONTENT_LENGTH = bytes("content-length");
+    private static final byte[] TRANSFER_ENCODING = bytes("transfer-encoding");
+    private static final byte[] CLOSE = bytes("close");
+    private static final byte[] KEEP_ALIVE = bytes("keep-alive");
+    private static final byte[] GZIP = bytes("gzip");
+    private static final byte[] X_GZIP = bytes("x-gzip");
+    private static final byte[] ANY = bytes("*");
+    private static final byte[] HTTP_1_0 = bytes("HTTP/1.0");
+    private static final byte[] HTTP_1_1 = bytes("HTTP/1.1");
+    private static final String[] METHODS = { "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH" };
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int length = 0;
+    private int lineLength = 0;
+    private HttpRequest waitingForBody = null;
+    private byte[] body;
+    private int bodyLength = 0;
+
+    /**
+     * Consumes bytes from input up to the end of one request.
+     * @return parsed request, or null if more bytes are needed (everything from input was consumed then)
+     */
+    public HttpRequest parse(ByteBuffer input) {
+        if (waitingForBody != null) {
+            return readBody(input);
+        }
+
+        while (input.hasRemaining()) {
+            byte b = input.get();
+
+            if (length == buffer.length) {
+                if (length >= MAX_HEADER_SIZE) {
+                    reset();
+                    return HttpRequest.invalid(431);
+                }
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_HEADER_SIZE));
+            }
+            buffer[length++] = b;
+
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    if (length <= 2) { // empty lines before request line are allowed, skip them
+                        length = 0;
+                        continue;
+                    }
+                    HttpRequest request = parseHeaderBlock();
+                    reset();
+                    if (request.contentLength() > 0) {
+                        waitingForBody = request;
+                        body = new byte[(int) request.contentLength()];
+                        return readBody(input);
+                    }
+                    return request;
+                }
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+        }
+        return null;
+    }
+
+    private HttpRequest readBody(ByteBuffer input) {
+        int count = Math.min(input.remaining(), body.length - bodyLength);
+        input.get(body, bodyLength, count);
+        bodyLength += count;
+        if (bodyLength < body.length) return null;
+
+        HttpRequest request = waitingForBody.withBody(body);
+        waitingForBody = null;
+        body = null;
+        bodyLength = 0;
+        return request;
+    }
+
+    private void reset() {
+        length = 0;
+        lineLength = 0;
+        if (buffer.length > INITIAL_SIZE) { // don't keep big buffer for every idle connection
+            buffer = new byte[INITIAL_SIZE];
+        }
+    }
+
+    private HttpRequest parseHeaderBlock() {
+        int lineEnd = lineEnd(0);
+
+        // request line: METHOD SP target SP version
+        int methodEnd = indexOf((byte) ' ', 0, lineEnd);
+        if (methodEnd <= 0) return HttpRequest.invalid(400);
+        int targetStart = methodEnd + 1;
+        int targetEnd = indexOf((byte) ' ', targetStart, lineEnd);
+        if (targetEnd <= targetStart) return HttpRequest.invalid(400);
+
+        String method = method(0, methodEnd);
+        if (method == null) return HttpRequest.invalid(501);
+
+        boolean http11;
+        if (equalsBytes(HTTP_1_1, targetEnd + 1, lineEnd)) {
+            http11 = true;
+        } else if (equalsBytes(HTTP_1_0, targetEnd + 1, lineEnd)) {
+            http11 = false;
+        } else {
+            return HttpRequest.invalid(505);
+        }
+
+        String path = decodePath(targetStart, targetEnd);
+
+        boolean connectionClose = false;
+        boolean connectionKeepAlive = false;
+        String range = null;
+        String ifRange = null;
+        String ifNoneMatch = null;
+        String authorization = null;
+        boolean acceptsGzip = false;
+        long contentLength = 0;
+
+        int lineStart = nextLine(lineEnd);
+        while (lineStart < length) {
+            lineEnd = lineEnd(lineStart);
+            if (lineEnd == lineStart) break; // empty line, end of headers
+
+            int colon = indexOf((byte) ':', lineStart, lineEnd);
+            if (colon <= lineStart) return HttpRequest.invalid(400);
+
+            int valueStart = colon + 1;
+            int valueEnd = lineEnd;
+            while (valueStart < valueEnd && isWhitespace(buffer[valueStart])) valueStart++;
+            while (valueEnd > valueStart && isWhitespace(buffer[valueEnd - 1])) valueEnd--;
+
+            if (nameEquals(CONNECTION, lineStart, colon)) {
+                connectionClose |= containsToken(CLOSE, valueStart, valueEnd);
+                connectionKeepAlive |= containsToken(KEEP_ALIVE, valueStart, valueEnd);
+            } else if (nameEquals(RANGE, lineStart, colon)) {
+                range = string(valueStart, valueEnd);
+            } else if (nameEquals(IF_RANGE, lineStart, colon)) {
+                ifRange = string(valueStart, valueEnd);
+            } else if (nameEquals(IF_NONE_MATCH, lineStart, colon)) {
+                ifNoneMatch = string(valueStart, valueEnd);
+            } else if (nameEquals(AUTHORIZATION, lineStart, colon)) {
+                authorization = string(valueStart, valueEnd);
+            } else if (nameEquals(ACCEPT_ENCODING, lineStart, colon)) {
+                acceptsGzip = acceptsGzip(valueStart, valueEnd);
+            } else if (nameEquals(CONTENT_LENGTH, lineStart, colon)) {
+                contentLength = parseLong(valueStart, valueEnd);
+                if (contentLength < 0) return HttpRequest.invalid(400);
+                if (contentLength > MAX_BODY_SIZE) return HttpRequest.invalid(413);
+            } else if (nameEquals(TRANSFER_ENCODING, lineStart, colon)) {
+                return HttpRequest.invalid(411); // chunked bodies aren't supported, client has to send Content-Length
+            }
+
+            lineStart = nextLine(lineEnd);
+        }
+
+        return new HttpRequest(0, method, path, http11, connectionClose, connectionKeepAlive, range, ifRange, ifNoneMatch, authorization, acceptsGzip, contentLength, null, System.nanoTime());
+    }
+
+    // Index of '\r' or '\n' which ends line starting at given index
+    private int lineEnd(int start) {
+        int i = start;
+        while (i < length && buffer[i] != '\n' && buffer[i] != '\r') i++;
+        return i;
+    }
+
+    private int nextLine(int lineEnd) {
+        int i = lineEnd;
+        if (i < length && buffer[i] == '\r') i++;
+        if (i < length && buffer[i] == '\n') i++;
+        return i;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private String method(int from, int to) {
+        for (String method : METHODS) {
+            if (method.length() != to - from) continue;
+            boolean matches = true;
+            for (int i = 0; i < method.length(); i++) {
+                if (buffer[from + i] != method.charAt(i)) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) return method;
+        }
+        return null;
+    }
+
+    // Percent-decodes request target, bytes are then decoded as UTF-8.
+    // Client encodes only some characters (see Url), so '?' and '%' not followed by hex digits are taken literally
+    private String decodePath(int from, int to) {
+        if (indexOf((byte) '%', from, to) == -1) {
+            return new String(buffer, from, to - from, StandardCharsets.UTF_8);
+        }
+
+        byte[] decoded = new byte[to - from];
+        int decodedLength = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buffer[i];
+            if (b == '%' && i + 2 < to) {
+                int high = Character.digit(buffer[i + 1], 16);
+                int low = Character.digit(buffer[i + 2], 16);
+                if (high != -1 && low != -1) {
+                    b = (byte) ((high << 4) | low);
+                    i += 2;
+                }
+            }
+            decoded[decodedLength++] = b;
+        }
+        return new String(decoded, 0, decodedLength, StandardCharsets.UTF_8);
+    }
+
+    private boolean acceptsGzip(int from, int to) {
+        int tokenStart = from;
+        while (tokenStart < to) {
+            int tokenEnd = indexOf((byte) ',', tokenStart, to);
+            if (tokenEnd == -1) tokenEnd = to;
+
+            int codingEnd = indexOf((byte) ';', tokenStart, tokenEnd);
+            if (codingEnd == -1) codingEnd = tokenEnd;
+
+            int start = skipWhitespace(tokenStart, codingEnd);
+            int end = codingEnd;
+            while (end > start && isWhitespace(buffer[end - 1])) end--;
+
+            if (nameEquals(GZIP, start, end) || nameEquals(X_GZIP, start, end) || nameEquals(ANY, start, end)) {
+                return !hasZeroQuality(codingEnd, tokenEnd);
+            }
+
+            tokenStart = tokenEnd + 1;
+        }
+        return false;
+    }
+
+    // Looks for q=0, q=0.0 etc. in parameters of one Accept-Encoding entry
+    private boolean hasZeroQuality(int from, int to) {
+        int q = from;
+        while ((q = indexOf((byte) 'q', q, to)) != -1) {
+            int i = skipWhitespace(q + 1, to);
+            if (i < to && buffer[i] == '=') {
+                i = skipWhitespace(i + 1, to);
+                if (i >= to || buffer[i] != '0') return false;
+                for (i++; i < to && !isWhitespace(buffer[i]); i++) {
+                    if (buffer[i] != '.' && buffer[i] != '0') return false;
+                }
+                return true;
+            }
+            q++;
+        }
+        return false;
+    }
+
+    // Comma separated list, e.g. "Connection: keep-alive, Upgrade"
+    private boolean containsToken(byte[] token, int from, int to) {
+        int tokenStart = from;
+        while (tokenStart < to) {
+            int tokenEnd = indexOf((byte) ',', tokenStart, to);
+            if (tokenEnd == -1) tokenEnd = to;
+            int start = skipWhitespace(tokenStart, tokenEnd);
+            int end = tokenEnd;
+            while (end > start && isWhitespace(buffer[end - 1])) end--;
+            if (nameEquals(token, start, end)) return true;
+            tokenStart = tokenEnd + 1;
+        }
+        return false;
+    }
+
+    private long parseLong(int from, int to) {
+        if (from == to || to - from > 18) return -1;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    // Case-insensitive, expected is lower case
+    private boolean nameEquals(byte[] expected, int from, int to) {
+        if (to - from != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            byte b = buffer[from + i];
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != expected[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean equalsBytes(byte[] expected, int from, int to) {
+        return Arrays.equals(buffer, from, to, expected, 0, expected.length);
+    }
+
+    private int skipWhitespace(int from, int to) {
+        while (from < to && isWhitespace(buffer[from])) from++;
+        return from;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private String string(int from, int to) {
+        return new String(buffer, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+}
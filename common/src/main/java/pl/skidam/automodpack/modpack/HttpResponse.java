@@ -0,0 +1,246 @@
+package pl.skidam.automodpack.modpack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static pl.skidam.automodpack.StaticVariables.serverConfig;
+
+/**
+ * Response queued on a connection, header and optionally a region of a file or body already in memory.
+ * Writing never waits for the client, when socket can't take more data write just returns and is called again once it can.
+ */
+
+public class HttpResponse {
+    private final ByteBuffer[] buffers; // header, and body if it's in memory
+    private final FileChannel fileChannel;
+    private final MappedFileCache.Mapping mapping; // body is a slice of it
+    private final long end;
+    private final boolean keepAlive;
+    private final boolean zeroCopy = serverConfig.hostZeroCopy;
+    private long position;
+    private ByteBuffer buffer;
+    private boolean released = false;
+    private final int status;
+    private long requestReceivedAt = 0;
+    private boolean started = false; // first byte was written
+    private boolean finished = false;
+    private boolean transfer = false; // counted in active transfers until released
+    private static final AtomicInteger activeTransfers = new AtomicInteger(); // responses with a file open or a big body built just for them
+
+    public HttpResponse(String header, boolean keepAlive) {
+        this(header, null, 0, 0, keepAlive);
+    }
+
+    public HttpResponse(ByteBuffer[] buffers, boolean keepAlive) {
+        this(buffers, null, keepAlive);
+    }
+
+    // Body from a mapped file, response keeps a reference to the mapping until it's released
+    public HttpResponse(ByteBuffer[] buffers, MappedFileCache.Mapping mapping, boolean keepAlive) {
+        this.buffers = buffers;
+        this.mapping = mapping;
+        this.fileChannel = null;
+        this.end = 0;
+        this.keepAlive = keepAlive;
+        this.status = status(buffers[0]);
+    }
+
+    public HttpResponse(String header, FileChannel fileChannel, long position, long length, boolean keepAlive) {
+        this.buffers = new ByteBuffer[] { ByteBuffer.wrap(header.getBytes(StandardCharsets.UTF_8)) };
+        this.mapping = null;
+        this.fileChannel = fileChannel;
+        if (fileChannel != null) {
+            countAsTransfer();
+        }
+        this.position = position;
+        this.end = position + length;
+        this.keepAlive = keepAlive;
+        this.status = status(buffers[0]);
+    }
+
+    // "HTTP/1.1 200 OK", 0 if header doesn't look like that
+    private static int status(ByteBuffer header) {
+        if (header.limit() < 12) return 0;
+        int status = 0;
+        for (int i = 9; i < 12; i++) {
+            int digit = header.get(i) - '0';
+            if (digit < 0 || digit > 9) return 0;
+            status = status * 10 + digit;
+        }
+        return status;
+    }
+
+    // Time request was received at, response latency is measured from it
+    public HttpResponse receivedAt(long requestReceivedAt) {
+        this.requestReceivedAt = requestReceivedAt;
+        return this;
+    }
+
+    // Body was built in memory just for this response (batch), so it's limited by hostMaxTransfers like files are
+    public HttpResponse countAsTransfer() {
+        if (!transfer) {
+            transfer = true;
+            activeTransfers.incrementAndGet();
+        }
+        return this;
+    }
+
+    public static int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    // Header alone, for responses written right away without being queued
+    public ByteBuffer headerBuffer() {
+        return buffers[0];
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public boolean isDone() {
+        if (hasRemaining(buffers)) return false;
+        if (fileChannel == null) return true;
+        return position >= end && (buffer == null || !buffer.hasRemaining());
+    }
+
+    /**
+     * Writes at most maxBytes, less if client isn't able to take more right now.
+     * @return number of bytes written, check {@link #isDone()} to see if whole response was sent
+     */
+    public long write(SocketChannel client, long maxBytes) throws IOException {
+        long written;
+        try {
+            written = writeSome(client, maxBytes);
+        } catch (InternalError e) { // mapped file got truncated under us
+            if (mapping == null) throw e;
+            throw new IOException("Mapped file changed while sending it", e);
+        }
+        if (written > 0) {
+            HostMetrics.bytesSent.add(written);
+            if (!started) {
+                started = true;
+                if (requestReceivedAt != 0) HostMetrics.firstByteSent(requestReceivedAt);
+            }
+        }
+        if (!finished && isDone()) {
+            finished = true;
+            HostMetrics.responseSent(status, requestReceivedAt);
+        }
+        return written;
+    }
+
+    private long writeSome(SocketChannel client, long maxBytes) throws IOException {
+        long written = 0;
+        if (hasRemaining(buffers)) {
+            written += writeBuffers(client, maxBytes);
+            if (hasRemaining(buffers)) return written;
+        }
+
+        if (fileChannel == null || written >= maxBytes) return written;
+
+        return written + (zeroCopy ? transfer(client, maxBytes - written) : copy(client, maxBytes - written));
+    }
+
+    private long writeBuffers(SocketChannel client, long maxBytes) throws IOException {
+        if (maxBytes == BandwidthLimiter.UNLIMITED) {
+            return client.write(buffers);
+        }
+
+        long written = 0;
+        for (ByteBuffer buffer : buffers) {
+            if (written >= maxBytes) break;
+            if (!buffer.hasRemaining()) continue;
+            written += writeLimited(client, buffer, maxBytes - written);
+            if (buffer.hasRemaining()) break;
+        }
+        return written;
+    }
+
+    private static int writeLimited(SocketChannel client, ByteBuffer buffer, long maxBytes) throws IOException {
+        int limit = buffer.limit();
+        if (buffer.remaining() > maxBytes) {
+            buffer.limit(buffer.position() + (int) maxBytes);
+        }
+        try {
+            return client.write(buffer);
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) return true;
+        }
+        return false;
+    }
+
+    // Hands the file over to the kernel (sendfile on linux), so it never gets copied through the java heap
+    private long transfer(SocketChannel client, long maxBytes) throws IOException {
+        long written = 0;
+        while (position < end && written < maxBytes) {
+            long transferred = fileChannel.transferTo(position, Math.min(end - position, maxBytes - written), client);
+            if (transferred == 0) {
+                if (position >= fileChannel.size()) {
+                    throw new IOException("File got truncated while sending it");
+                }
+                break; // socket send buffer is full
+            }
+            position += transferred;
+            written += transferred;
+        }
+        return written;
+    }
+
+    private long copy(SocketChannel client, long maxBytes) throws IOException {
+        if (buffer == null) {
+            buffer = BufferPool.acquire().flip();
+        }
+
+        long written = 0;
+        while (written < maxBytes) {
+            if (!buffer.hasRemaining()) {
+                if (position >= end) break;
+
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = fileChannel.read(buffer, position);
+                if (read == -1) {
+                    throw new IOException("File got truncated while sending it");
+                }
+                position += read;
+                buffer.flip();
+            }
+
+            int bufferWritten = writeLimited(client, buffer, maxBytes - written);
+            written += bufferWritten;
+            if (buffer.hasRemaining() && bufferWritten == 0) break; // socket send buffer is full
+        }
+        return written;
+    }
+
+    public void release() {
+        if (released) return;
+        released = true;
+        if (buffer != null) {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
+        if (mapping != null) {
+            mapping.release();
+        }
+        if (transfer) {
+            activeTransfers.decrementAndGet();
+        }
+        if (fileChannel == null) return;
+        try {
+            fileChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -3,35 +3,65 @@ package pl.skidam.automodpack.modpack;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import pl.skidam.automodpack.config.ConfigTools;
 import pl.skidam.automodpack.config.Jsons;
+import pl.skidam.automodpack.utils.BatchFormat;
 import pl.skidam.automodpack.utils.Ip;
-import pl.skidam.automodpack.utils.Url;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static pl.skidam.automodpack.StaticVariables.*;
 import static pl.skidam.automodpack.modpack.Modpack.hostModpackContentFile;
-import static pl.skidam.automodpack.modpack.Modpack.hostModpackDir;
 
 public class HttpServer {
-    private static final int BUFFER_SIZE = 32 * 1024;
-    public static List<String> filesList = new ArrayList<>();
-    public static ExecutorService HTTPServerExecutor;
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+    public static ExecutorService HTTPServerExecutor; // handles requests
+    private static ExecutorService HTTPServerIOExecutor; // acceptor and selector threads, unused with virtual threads
     public static boolean isRunning = false;
     public static Object server = null;
+    private static volatile ServerSocketChannel metricsServer = null; // only if metrics have their own port
+    private static volatile Reactor[] reactors = new Reactor[0];
+    private static final AtomicInteger openConnections = new AtomicInteger();
+    private static final long LINGER_MILLIS = 1000; // how long rejected connection is kept for its request to arrive
+    private static final int MAX_LINGERING_CONNECTIONS = 1024; // beyond that rejected connections are just closed
+    private static final AtomicInteger lingeringConnections = new AtomicInteger();
+    private static final ScheduledExecutorService lingeringCloser = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("AutoModpackHost-Closer")
+            .setDaemon(true)
+            .build());
+    private static final Set<SocketChannel> blockingClients = ConcurrentHashMap.newKeySet(); // virtual threads mode only
 
     public static void start() {
         if (isRunning) return;
@@ -82,11 +112,27 @@ public class HttpServer {
             e.printStackTrace();
         }
 
+        ServerSocketChannel metricsChannel = metricsServer;
+        if (metricsChannel != null) {
+            try {
+                metricsChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            metricsServer = null;
+        }
+
         HTTPServerExecutor.shutdownNow();
+        if (HTTPServerIOExecutor != null) {
+            HTTPServerIOExecutor.shutdownNow();
+        }
         try {
             if (!HTTPServerExecutor.awaitTermination(3, TimeUnit.SECONDS)) {
                 LOGGER.warn("Forcing shutdown of HTTPServerExecutor");
             }
+            if (HTTPServerIOExecutor != null && !HTTPServerIOExecutor.awaitTermination(3, TimeUnit.SECONDS)) {
+                LOGGER.warn("Forcing shutdown of HTTPServerIOExecutor");
+            }
         } catch (InterruptedException ignored) {
         }
 
@@ -99,7 +145,7 @@ public class HttpServer {
             }
         }
 
-        if (serverSocketChannel.socket().isClosed() && HTTPServerExecutor.isTerminated()) {
+        if (serverSocketChannel.socket().isClosed() && HTTPServerExecutor.isTerminated() && (HTTPServerIOExecutor == null || HTTPServerIOExecutor.isTerminated())) {
             LOGGER.info("Stopped modpack hosting");
             isRunning = false;
         } else {
@@ -109,203 +155,1043 @@ public class HttpServer {
 
     private HttpServer() {
         try {
-            Jsons.ModpackContentFields serverModpackContent = ConfigTools.loadModpackContent(hostModpackContentFile);
-            if (serverModpackContent == null) {
-                LOGGER.error("Modpack content is null! Can't start hosting modpack");
-                return;
+            // routes are built on generation, modpack wasn't generated since start only if generation on start is off
+            if (RoutingTable.current().generation() == 0) {
+                Jsons.ModpackContentFields serverModpackContent = ConfigTools.loadModpackContent(hostModpackContentFile);
+                if (serverModpackContent == null) {
+                    LOGGER.error("Modpack content is null! Can't start hosting modpack");
+                    return;
+                }
+
+                RoutingTable.build(serverModpackContent, null, hostModpackContentFile);
             }
+            BandwidthLimiter.init();
 
-            filesList.clear();
-            for (Jsons.ModpackContentFields.ModpackContentItems item : serverModpackContent.list) {
-                filesList.add(item.file);
+            InetSocketAddress address = new InetSocketAddress("0.0.0.0", serverConfig.hostPort);
+
+            if (serverConfig.hostVirtualThreads) {
+                HTTPServerExecutor = createVirtualThreadExecutor();
+                if (HTTPServerExecutor != null) {
+                    HTTPServerExecutor.submit(() -> acceptBlocking(address, false));
+                    if (serverConfig.hostMetrics && HostMetrics.hasOwnPort()) {
+                        HTTPServerExecutor.submit(() -> acceptBlocking(new InetSocketAddress("0.0.0.0", serverConfig.hostMetricsPort), true));
+                    }
+                    return;
+                }
+                LOGGER.warn("Virtual threads aren't available on Java {}, using {} host threads instead", Runtime.version().feature(), serverConfig.hostThreads);
             }
 
             ThreadFactory threadFactory = new ThreadFactoryBuilder()
                     .setNameFormat("AutoModpackHost-%d")
                     .build();
 
-            HTTPServerExecutor = Executors.newFixedThreadPool(
+            // bounded queue, when it's full clients get 503 instead of piling up more work
+            HTTPServerExecutor = new ThreadPoolExecutor(
+                    serverConfig.hostThreads,
                     serverConfig.hostThreads,
+                    0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, serverConfig.hostMaxQueuedRequests)),
                     threadFactory
             );
 
-            InetSocketAddress address = new InetSocketAddress("0.0.0.0", serverConfig.hostPort);
+            int reactorCount = serverConfig.hostSelectorThreads > 0 ? serverConfig.hostSelectorThreads : Runtime.getRuntime().availableProcessors();
+            Reactor[] newReactors = new Reactor[reactorCount];
+            for (int i = 0; i < reactorCount; i++) {
+                newReactors[i] = new Reactor(Selector.open());
+            }
+            reactors = newReactors;
 
+            // one acceptor, the rest are selector threads
+            HTTPServerIOExecutor = Executors.newFixedThreadPool(reactorCount + 1, new ThreadFactoryBuilder()
+                    .setNameFormat("AutoModpackHost-IO-%d")
+                    .build());
+            for (Reactor reactor : newReactors) {
+                HTTPServerIOExecutor.submit(reactor);
+            }
+            HTTPServerIOExecutor.submit(() -> accept(address));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            HTTPServerExecutor.submit(() -> {
+    // Only accepts connections and hands them to selector threads in turns, each of them owns reads and writes of its connections
+    private static void accept(InetSocketAddress address) {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+             ServerSocketChannel metricsChannel = serverConfig.hostMetrics && HostMetrics.hasOwnPort() ? ServerSocketChannel.open() : null) {
+            ServerSocket serverSocket = serverSocketChannel.socket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(address);
+            serverSocketChannel.configureBlocking(false);
+            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-                try {
-                    Selector selector = Selector.open();
+            if (metricsChannel != null) {
+                metricsChannel.socket().setReuseAddress(true);
+                metricsChannel.socket().bind(new InetSocketAddress("0.0.0.0", serverConfig.hostMetricsPort));
+                metricsChannel.configureBlocking(false);
+                metricsChannel.register(selector, SelectionKey.OP_ACCEPT);
+                metricsServer = metricsChannel;
+                LOGGER.info("Modpack host metrics available on port {}", serverConfig.hostMetricsPort);
+            }
 
-                    try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
-                        ServerSocket serverSocket = serverSocketChannel.socket();
-                        serverSocket.setReuseAddress(true);
-                        serverSocket.bind(address);
-                        serverSocketChannel.configureBlocking(false);
-                        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Reactor[] reactors = HttpServer.reactors;
+            LOGGER.info("Modpack hosting started! on port {} ({} selector threads)", serverConfig.hostPort, reactors.length);
+            isRunning = true;
 
-                        LOGGER.info("Modpack hosting started! on port {}", serverConfig.hostPort);
-                        isRunning = true;
+            server = serverSocketChannel;
 
-                        server = serverSocketChannel;
+            int next = 0;
+            while (isRunning) {
+                selector.select();
 
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid() || !key.isAcceptable()) continue;
 
-                        while (isRunning) {
-                            selector.select();
-                            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-                            while (keys.hasNext()) {
-                                SelectionKey key = keys.next();
-                                keys.remove();
+                    SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+                    if (client == null) continue;
+                    client.configureBlocking(false);
+                    boolean metricsOnly = key.channel() == metricsChannel;
+                    if (!admitConnection(client, metricsOnly)) continue;
 
-                                if (!key.isValid()) {
-                                    continue;
-                                }
+                    reactors[next].add(client, metricsOnly);
+                    next = (next + 1) % reactors.length;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (isRunning || server == null) { // not stopping, just failed to start or to accept
+                e.printStackTrace();
+                HTTPServerIOExecutor.shutdownNow();
+                stop();
+            }
+        }
+    }
 
-                                if (key.isAcceptable()) {
-                                    SocketChannel client = serverSocketChannel.accept();
-                                    client.configureBlocking(false);
-                                    client.register(selector, SelectionKey.OP_READ);
-                                } else if (key.isReadable()) {
-                                    SocketChannel client = (SocketChannel) key.channel();
+    // Virtual threads are in Java 21+, mod is built for 17 so they have to be looked up by reflection
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
 
-                                    if (!client.isOpen()) continue;
+    // With virtual threads every connection gets its own thread with plain blocking I/O, no selector needed
+    private static void acceptBlocking(InetSocketAddress address, boolean metricsOnly) {
+        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+            ServerSocket serverSocket = serverSocketChannel.socket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(address);
 
-                                    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-                                    int read = client.read(buffer);
-                                    if (read == -1) {
-                                        client.close();
-                                        continue;
-                                    }
+            if (metricsOnly) {
+                LOGGER.info("Modpack host metrics available on port {}", address.getPort());
+                metricsServer = serverSocketChannel;
+            } else {
+                LOGGER.info("Modpack hosting started! on port {} (virtual threads)", serverConfig.hostPort);
+                isRunning = true;
+                server = serverSocketChannel;
+            }
 
-                                    buffer.flip();
-                                    String request = StandardCharsets.UTF_8.decode(buffer).toString();
+            while (isRunning || metricsOnly) { // metrics acceptor may start first, it ends when stop closes its channel
+                SocketChannel client = serverSocketChannel.accept();
+                if (!admitConnection(client, metricsOnly)) continue;
+                try {
+                    HTTPServerExecutor.submit(() -> serveBlocking(client, metricsOnly));
+                } catch (RejectedExecutionException e) { // stopping
+                    openConnections.decrementAndGet();
+                    client.close();
+                }
+            }
+        } catch (IOException e) {
+            if (isRunning) {
+                e.printStackTrace();
+                stop();
+            }
+        } finally {
+            for (SocketChannel client : blockingClients) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
 
-                                    HTTPServerExecutor.submit(new RequestHandler(client, request));
-                                }
-                            }
+    private static void serveBlocking(SocketChannel client, boolean metricsOnly) {
+        blockingClients.add(client);
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] bytes = new byte[8 * 1024];
+        ByteBuffer received = ByteBuffer.allocate(0);
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        int handledRequests = 0;
+
+        try (client) {
+            // reading through socket's stream, channel reads don't have a timeout
+            Socket socket = client.socket();
+            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(serverConfig.hostKeepAliveTimeout));
+            InputStream inputStream = socket.getInputStream();
+
+            while (isRunning) {
+                HttpRequest request = parser.parse(received);
+                if (request == null) {
+                    int read = inputStream.read(bytes);
+                    if (read == -1) return;
+                    received = ByteBuffer.wrap(bytes, 0, read);
+                    continue;
+                }
+
+                handledRequests++;
+                boolean keepAlive = request.keepAlive() && handledRequests < serverConfig.hostMaxRequestsPerConnection;
+                HttpResponse response = RequestHandler.handle(request, keepAlive, metricsOnly).receivedAt(request.receivedAt());
+                try {
+                    while (!response.isDone()) {
+                        long allowance = limiter.acquire();
+                        if (allowance == 0) {
+                            TimeUnit.NANOSECONDS.sleep(limiter.nanosUntilAvailable());
+                            continue;
                         }
+                        limiter.release(allowance, response.write(client, allowance));
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    stop();
+                } finally {
+                    response.release();
                 }
-            });
-        } catch (Exception e) {
-            e.printStackTrace();
+
+                if (!response.isKeepAlive()) return;
+            }
+        } catch (IOException | InterruptedException ignored) { // client disconnected, was idle for too long or host is stopping
+        } finally {
+            blockingClients.remove(client);
+            openConnections.decrementAndGet();
         }
     }
 
-    private record RequestHandler(SocketChannel client, String request) implements Runnable {
+    public static int getOpenConnections() {
+        return openConnections.get();
+    }
 
-    @Override
-        public void run() {
-            String[] requestLines = request.split("\r\n");
-            String[] requestFirstLine = requestLines[0].split(" ");
-            String requestMethod = requestFirstLine[0];
-            String requestUrl = requestFirstLine[1];
+    private static void readRequests(Connection connection) {
+        ByteBuffer buffer = BufferPool.acquire();
+        try {
+            int read;
+            try {
+                read = connection.client.read(buffer);
+            } catch (IOException e) {
+                read = -1;
+            }
 
-            requestUrl = Url.decode(requestUrl);
+            if (read == -1) {
+                connection.close();
+                return;
+            }
 
-            try {
-                if (requestMethod.equals("GET")) {
-                    File file;
-                    if (requestUrl.equals("") || requestUrl.equals("/")) {
-                        file = hostModpackContentFile;
-                    } else if (requestUrl.contains("..")) {
-                        sendError(client, 403);
-                        return;
-                    } else if (filesList.contains(requestUrl)) {
-                        file = new File(hostModpackDir + File.separator + requestUrl);
-                        if (!file.exists()) {
-                            file = new File("./" + requestUrl);
-                            if (!file.exists()) {
-                                sendError(client, 404);
-                                return;
-                            }
-                        }
-                    } else {
-                        sendError(client, 404);
+            buffer.flip();
+            connection.received(buffer); // parser copies what it needs, buffer can go back right away
+        } finally {
+            BufferPool.release(buffer);
+        }
+
+        // Don't read more than we are able to answer, client will wait in its socket buffer
+        // after invalid request there is nothing more to read, connection gets closed once error is sent
+        if (connection.isBacklogFull() || connection.isBroken()) {
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        if (connection.startHandling()) {
+            submitHandler(connection);
+        }
+    }
+
+    // Called on connection's selector thread, writes as much as client accepts and bandwidth limits allow,
+    // then waits for OP_WRITE or for more tokens for the rest
+    private static void writeResponses(Connection connection) {
+        SelectionKey key = connection.key;
+        if (!key.isValid() || connection.throttled) return;
+
+        try {
+            HttpResponse response;
+            while ((response = connection.currentResponse()) != null) {
+                long allowance = connection.limiter.acquire();
+                if (allowance == 0) {
+                    connection.reactor.throttle(connection, connection.limiter.nanosUntilAvailable());
+                    return;
+                }
+
+                long written = response.write(connection.client, allowance);
+                connection.limiter.release(allowance, written);
+                if (!response.isDone()) {
+                    if (written < allowance) { // socket send buffer is full
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
                         return;
                     }
-
-                    if (!file.exists() || !file.isFile()) {
-                        sendError(client, 404);
+                    if (allowance != BandwidthLimiter.UNLIMITED) {
+                        connection.reactor.throttle(connection, 0); // used up its chunk, let others write before it gets more
                         return;
                     }
+                    continue;
+                }
 
-                    sendFile(client, file);
-                } else {
-                    sendError(client, 405);
+                connection.responseWritten();
+                if (!response.isKeepAlive()) {
+                    connection.close();
+                    return;
                 }
+            }
+        } catch (IOException e) {
+            connection.close();
+            return;
+        }
 
-                client.close();
-            } catch (IOException e) {
+        int interestOps = key.interestOps() & ~SelectionKey.OP_WRITE;
+        if (!connection.isBacklogFull() && !connection.isBroken()) {
+            interestOps |= SelectionKey.OP_READ;
+        }
+        key.interestOps(interestOps);
+
+        if (connection.startHandling()) {
+            submitHandler(connection);
+        }
+    }
+
+    // Too many open connections, tell client to come back later. It's one small write, if it doesn't fit client just sees closed connection
+    // metrics port isn't limited, host has to stay observable when it's overloaded
+    private static boolean admitConnection(SocketChannel client, boolean metricsOnly) throws IOException {
+        if (openConnections.incrementAndGet() <= serverConfig.hostMaxConnections || metricsOnly) {
+            HostMetrics.acceptedConnections.increment();
+            return true;
+        }
+
+        openConnections.decrementAndGet();
+        HostMetrics.rejectedConnections.increment();
+        try {
+            client.configureBlocking(false);
+            client.write(RequestHandler.unavailable(false).headerBuffer());
+            client.shutdownOutput();
+        } catch (IOException e) {
+            closeQuietly(client);
+            return false;
+        }
+        lingeringClose(client);
+        return false;
+    }
+
+    // Closing with client's request still unread makes kernel reset the connection, and client sees the reset instead of our 503.
+    // So request is read and thrown away, and connection is closed a bit later, without holding up the acceptor meanwhile
+    private static void lingeringClose(SocketChannel client) {
+        if (lingeringConnections.incrementAndGet() > MAX_LINGERING_CONNECTIONS) {
+            lingeringConnections.decrementAndGet();
+            closeQuietly(client);
+            return;
+        }
+
+        drain(client);
+        lingeringCloser.schedule(() -> {
+            drain(client);
+            closeQuietly(client);
+            lingeringConnections.decrementAndGet();
+        }, LINGER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void drain(SocketChannel client) {
+        ByteBuffer discard = ByteBuffer.allocate(4096);
+        try {
+            while (client.read(discard) > 0) {
+                discard.clear();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void closeQuietly(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void submitHandler(Connection connection) {
+        try {
+            HTTPServerExecutor.submit(new RequestHandler(connection));
+        } catch (RejectedExecutionException e) { // queue is full
+            HostMetrics.rejectedRequests.increment();
+            connection.stopHandling();
+            queueResponse(connection, RequestHandler.unavailable(false));
+        }
+    }
+
+    private static void queueResponse(Connection connection, HttpResponse response) {
+        if (!connection.queue(response)) return;
+        connection.reactor.wakeUpToWrite(connection);
+    }
+
+    // Selector thread with its own connections, it reads their requests and writes their responses, handling requests happens on the executor
+    private static class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> accepted = new ConcurrentLinkedQueue<>(); // waiting to be registered
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>(); // connections with new responses to write
+        private final Deque<Connection> throttledConnections = new ArrayDeque<>(); // waiting for bandwidth, this thread only
+
+        private Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        // Called by the acceptor, channels can only be registered while selector isn't blocked, so it's done on the selector thread
+        private void add(SocketChannel client, boolean metricsOnly) {
+            accepted.add(new Connection(client, this, metricsOnly));
+            selector.wakeup();
+        }
+
+        private void wakeUpToWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup(); // no-op once selector is closed
+        }
+
+        @Override
+        public void run() {
+            try (selector) {
                 try {
-                    sendError(client, 400);
-                } catch (IOException ignore) {
+                    // stop interrupts selector threads, select returns right away then
+                    while (!Thread.currentThread().isInterrupted()) {
+                        long timeout = selectTimeout();
+                        if (timeout > 0) {
+                            selector.select(timeout);
+                        } else {
+                            selector.selectNow(); // some throttled connection can write already
+                        }
+
+                        Connection connection;
+                        while ((connection = accepted.poll()) != null) {
+                            try {
+                                connection.key = connection.client.register(selector, SelectionKey.OP_READ, connection);
+                            } catch (IOException e) {
+                                connection.close();
+                            }
+                        }
+
+                        while ((connection = pendingWrites.poll()) != null) {
+                            writeResponses(connection);
+                        }
+
+                        resumeThrottled();
+
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+
+                            if (!key.isValid()) {
+                                continue;
+                            }
+
+                            connection = (Connection) key.attachment();
+
+                            if (key.isWritable()) {
+                                writeResponses(connection);
+                            }
+
+                            if (key.isValid() && key.isReadable()) {
+                                readRequests(connection);
+                            }
+                        }
+
+                        closeIdleConnections();
+                    }
+                } finally {
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof Connection connection) {
+                            connection.close();
+                        }
+                    }
+                    Connection connection;
+                    while ((connection = accepted.poll()) != null) {
+                        connection.close();
+                    }
                 }
+            } catch (IOException e) {
                 e.printStackTrace();
+                stop();
+            }
+        }
+
+        // Stops writing to the connection for a while, connections are resumed in the order they had to wait
+        private void throttle(Connection connection, long waitNanos) {
+            SelectionKey key = connection.key;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            connection.throttled = true;
+            connection.resumeAt = System.nanoTime() + waitNanos;
+            throttledConnections.add(connection);
+        }
+
+        private void resumeThrottled() {
+            long now = System.nanoTime();
+            for (int i = throttledConnections.size(); i > 0; i--) {
+                Connection connection = throttledConnections.poll();
+                if (connection.resumeAt - now > 0 && connection.key.isValid()) {
+                    throttledConnections.add(connection);
+                    continue;
+                }
+                connection.throttled = false;
+                writeResponses(connection); // might get throttled again, it goes to the end of the queue then
+            }
+        }
+
+        private long selectTimeout() {
+            long timeout = IDLE_CHECK_INTERVAL;
+            long now = System.nanoTime();
+            for (Connection connection : throttledConnections) {
+                long wait = connection.resumeAt - now;
+                if (wait <= 0) return 0;
+                timeout = Math.min(timeout, Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+            }
+            return timeout;
+        }
+
+        private void closeIdleConnections() {
+            long idleTimeout = TimeUnit.SECONDS.toMillis(serverConfig.hostKeepAliveTimeout);
+            long now = System.currentTimeMillis();
+            for (SelectionKey key : selector.keys()) {
+                if (!(key.attachment() instanceof Connection connection)) continue;
+                if (connection.isIdle(now, idleTimeout)) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    // State of one client connection. Requests are read and responses written on its reactor's selector thread,
+    // handling requests (finding and opening files) happens on the executor, one request at a time per connection
+    private static class Connection {
+        private static final int MAX_BACKLOG = 16;
+        private final SocketChannel client;
+        private final Reactor reactor;
+        private SelectionKey key; // set once reactor registers the connection
+        private final HttpRequestParser parser = new HttpRequestParser();
+        private final Deque<HttpRequest> requests = new ArrayDeque<>();
+        private final Deque<HttpResponse> responses = new ArrayDeque<>();
+        private final BandwidthLimiter limiter = new BandwidthLimiter();
+        private final boolean metricsOnly; // accepted on metrics port
+        private boolean throttled = false; // selector thread only
+        private long resumeAt = 0;
+        private boolean broken = false;
+        private boolean handling = false;
+        private boolean closing = false;
+        private boolean closed = false;
+        private int handledRequests = 0;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private Connection(SocketChannel client, Reactor reactor, boolean metricsOnly) {
+            this.client = client;
+            this.reactor = reactor;
+            this.metricsOnly = metricsOnly;
+        }
+
+        // Feeds received bytes to the parser, pipelined requests may arrive in a single read
+        private synchronized void received(ByteBuffer buffer) {
+            lastActivity = System.currentTimeMillis();
+
+            while (!broken && buffer.hasRemaining()) {
+                HttpRequest request = parser.parse(buffer);
+                if (request == null) break;
+                requests.add(request);
+                // we can't tell where next request starts, so anything after is ignored
+                broken = request.error() != 0;
+            }
+        }
+
+        private synchronized boolean isBroken() {
+            return broken;
+        }
+
+        private synchronized boolean isBacklogFull() {
+            return requests.size() + responses.size() >= MAX_BACKLOG;
+        }
+
+        private synchronized void stopHandling() {
+            handling = false;
+        }
+
+        private synchronized boolean startHandling() {
+            if (handling || closing || requests.isEmpty() || responses.size() >= MAX_BACKLOG) return false;
+            handling = true;
+            return true;
+        }
+
+        // Returns null when handler should stop, either nothing to do or client has enough responses waiting
+        private synchronized HttpRequest nextRequest() {
+            if (closing || requests.isEmpty() || responses.size() >= MAX_BACKLOG) {
+                handling = false;
+                return null;
+            }
+            handledRequests++;
+            return requests.poll();
+        }
+
+        private synchronized boolean queue(HttpResponse response) {
+            if (closed) {
+                response.release();
+                return false;
+            }
+            if (!response.isKeepAlive()) {
+                closing = true;
+            }
+            responses.add(response);
+            return true;
+        }
+
+        private synchronized HttpResponse currentResponse() {
+            return responses.peek();
+        }
+
+        private synchronized void responseWritten() {
+            HttpResponse response = responses.poll();
+            if (response != null) {
+                response.release();
             }
+            lastActivity = System.currentTimeMillis();
+        }
+
+        private synchronized boolean isIdle(long now, long idleTimeout) {
+            return !handling && requests.isEmpty() && responses.isEmpty() && now - lastActivity > idleTimeout;
+        }
+
+        private synchronized void close() {
+            if (closed) return;
+            closed = true;
+            openConnections.decrementAndGet();
+            closing = true;
+            requests.clear();
+            HttpResponse response;
+            while ((response = responses.poll()) != null) {
+                response.release();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private record RequestHandler(Connection connection) implements Runnable {
+
+        @Override
+        public void run() {
+            HttpRequest request;
+            while ((request = connection.nextRequest()) != null) {
+                boolean keepAlive = request.keepAlive() && connection.handledRequests < serverConfig.hostMaxRequestsPerConnection;
+                queueResponse(connection, handle(request, keepAlive, connection.metricsOnly).receivedAt(request.receivedAt()));
+            }
+        }
+
+        private static HttpResponse handle(HttpRequest request, boolean keepAlive, boolean metricsOnly) {
+            HostMetrics.requests.increment();
+            if (request.error() != 0) {
+                return error(request.error(), false);
+            }
+
+            // with its own port metrics are served only there, otherwise next to the modpack
+            if (serverConfig.hostMetrics && metricsOnly == HostMetrics.hasOwnPort() && request.path().equals(HostMetrics.PATH)) {
+                return metrics(request, keepAlive);
+            }
+            if (metricsOnly) {
+                return error(404, keepAlive);
+            }
+
+            // taken once, everything this request sends comes from the same generation
+            RoutingTable.Snapshot snapshot = RoutingTable.current();
+
+            if (request.method().equals("POST") && request.path().equals(BatchFormat.PATH)) {
+                return batch(snapshot, request, keepAlive);
+            }
+
+            if (!request.method().equals("GET")) {
+                return error(405, keepAlive);
+            }
+
+            String requestUrl = request.path();
+            if (requestUrl.contains("..")) {
+                return error(403, keepAlive);
+            }
+
+            if (RoutingTable.Snapshot.isManifest(requestUrl)) {
+                return manifest(snapshot, request, keepAlive);
+            }
+
+            RoutingTable.Route route = snapshot.get(requestUrl);
+            if (route == null) {
+                return error(404, keepAlive);
+            }
+            // caches would keep whatever we send under its hash for a year, so don't send it if it changed since generation
+            if (route.immutable() && !route.isUnchanged()) {
+                return error(404, keepAlive);
+            }
+
+            String range = request.range();
+            String cacheHeaders = route.gzip() != null ? "Vary: Accept-Encoding\r\n" : "";
+            if (route.immutable()) {
+                cacheHeaders += IMMUTABLE_HEADER;
+            }
+            // ranges are always counted in bytes of original file
+            boolean gzip = route.gzip() != null && range == null && request.acceptsGzip();
+            String etag = gzip ? route.gzipEtag() : route.etag();
+
+            // client already has this exact file, no need to send it again
+            if (etag != null && request.ifNoneMatch() != null && matchesEtag(request.ifNoneMatch(), etag)) {
+                return new HttpResponse(String.format(NOT_MODIFIED_RESPONSE, etag, cacheHeaders, connectionHeaders(keepAlive)), keepAlive);
+            }
+
+            if (gzip) {
+                return file(snapshot.generation(), route.gzip().toPath(), requestUrl + "#gzip", route.gzipSize(), route.lastModified(), etag, route.contentType(), cacheHeaders + "Content-Encoding: gzip\r\n", keepAlive, null, null);
+            }
+
+            return file(snapshot.generation(), route.path(), requestUrl, route.size(), route.lastModified(), etag, route.contentType(), cacheHeaders, keepAlive, range, request.ifRange());
+        }
+
+        // Modpack content is sent from the snapshot, not from disk, so it always describes files of the same generation
+        private static HttpResponse manifest(RoutingTable.Snapshot snapshot, HttpRequest request, boolean keepAlive) {
+            if (snapshot.manifest() == null) {
+                return error(404, keepAlive);
+            }
+
+            String range = request.range();
+            String cacheHeaders = snapshot.manifestGzip() != null ? "Vary: Accept-Encoding\r\n" : "";
+            boolean gzip = snapshot.manifestGzip() != null && range == null && request.acceptsGzip();
+            String etag = gzip ? snapshot.manifestGzipEtag() : snapshot.manifestEtag();
+
+            if (etag != null && request.ifNoneMatch() != null && matchesEtag(request.ifNoneMatch(), etag)) {
+                return new HttpResponse(String.format(NOT_MODIFIED_RESPONSE, etag, cacheHeaders, connectionHeaders(keepAlive)), keepAlive);
+            }
+
+            String lastModified = HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(snapshot.manifestLastModified()));
+            if (etag != null) {
+                cacheHeaders = "ETag: " + etag + "\r\n" + cacheHeaders;
+            }
+            if (gzip) {
+                return bufferedFile(ByteBuffer.wrap(snapshot.manifestGzip()), null, lastModified, etag, "application/json", cacheHeaders + "Content-Encoding: gzip\r\n", keepAlive, null, null);
+            }
+            return bufferedFile(ByteBuffer.wrap(snapshot.manifest()), null, lastModified, etag, "application/json", cacheHeaders, keepAlive, range, request.ifRange());
+        }
+
+        // Many small files in one response, see BatchFormat. Files which are too big or unknown are sent as missing, client downloads them one by one
+        private static HttpResponse batch(RoutingTable.Snapshot snapshot, HttpRequest request, boolean keepAlive) {
+            if (request.body() == null) {
+                return error(400, keepAlive);
+            }
+
+            String[] paths = new String(request.body(), StandardCharsets.UTF_8).split("\n");
+            if (paths.length > BatchFormat.MAX_FILES) {
+                return error(413, keepAlive);
+            }
+
+            // response is built in memory, up to MAX_RESPONSE_SIZE each
+            if (HttpResponse.getActiveTransfers() >= serverConfig.hostMaxTransfers) {
+                return unavailable(keepAlive);
+            }
+
+            List<ByteBuffer> buffers = new ArrayList<>();
+            buffers.add(null); // header, once we know the length
+            long contentLength = 0;
+            long dataLength = 0;
+
+            for (String path : paths) {
+                path = path.trim();
+                if (path.isEmpty()) continue;
+
+                byte[] data = null;
+                RoutingTable.Route route = snapshot.get(path);
+                if (route != null && !path.contains("..") && route.size() <= BatchFormat.MAX_FILE_SIZE && dataLength + route.size() <= BatchFormat.MAX_RESPONSE_SIZE) {
+                    data = readSmallFile(snapshot.generation(), path, route.path());
+                }
+
+                ByteBuffer frameHeader = BatchFormat.header(path, data != null ? data.length : -1);
+                buffers.add(frameHeader);
+                contentLength += frameHeader.remaining();
+                if (data != null) {
+                    buffers.add(ByteBuffer.wrap(data));
+                    contentLength += data.length;
+                    dataLength += data.length;
+                }
+            }
+
+            buffers.set(0, ByteBuffer.wrap(String.format(BATCH_RESPONSE, contentLength, connectionHeaders(keepAlive)).getBytes(StandardCharsets.UTF_8)));
+            return new HttpResponse(buffers.toArray(new ByteBuffer[0]), keepAlive).countAsTransfer();
+        }
+
+        private static HttpResponse metrics(HttpRequest request, boolean keepAlive) {
+            if (!request.method().equals("GET")) {
+                return error(405, keepAlive);
+            }
+            if (!HostMetrics.isAuthorized(request.authorization())) {
+                return error(401, keepAlive);
+            }
+
+            byte[] body = HostMetrics.render().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer[] buffers = {
+                    ByteBuffer.wrap(String.format(METRICS_RESPONSE, HostMetrics.CONTENT_TYPE, body.length, connectionHeaders(keepAlive)).getBytes(StandardCharsets.UTF_8)),
+                    ByteBuffer.wrap(body)
+            };
+            return new HttpResponse(buffers, keepAlive);
+        }
+
+        // Cached body if we have it, file got removed or changed size since generation returns null
+        private static byte[] readSmallFile(long generation, String cacheKey, Path file) {
+            HotFileCache.Entry entry = HotFileCache.get(cacheKey, generation);
+            if (entry != null) {
+                return entry.body();
+            }
+
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long fileSize = fileChannel.size();
+                if (fileSize > BatchFormat.MAX_FILE_SIZE) return null; // grew since generation
+
+                ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+                while (buffer.hasRemaining() && fileChannel.read(buffer) != -1) { }
+                return buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        // If-None-Match may list several etags, weak ones (W/"...") are compared by their value.
+        // Only etag of the representation being sent counts, client having the gzip one doesn't mean it has the plain one
+        private static boolean matchesEtag(String ifNoneMatch, String etag) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*")) return true;
+                if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+                if (candidate.equals(etag)) return true;
+            }
+            return false;
         }
 
         private static final String ERROR_RESPONSE =
                 "HTTP/1.1 %d\r\n" +
                         "Content-Type: text/html\r\n" +
                         "Content-Length: 0\r\n" +
+                        "%s" +
                         "\r\n";
 
-        private static void sendError(SocketChannel client, int code) throws IOException {
-            if (!client.isOpen()) return;
+        private static HttpResponse error(int code, boolean keepAlive) {
+            return new HttpResponse(String.format(ERROR_RESPONSE, code, connectionHeaders(keepAlive)), keepAlive);
+        }
 
-            String response = String.format(ERROR_RESPONSE, code);
-            client.write(StandardCharsets.UTF_8.encode(response));
+        // a year, the longest value caches are expected to honor
+        private static final String IMMUTABLE_HEADER = "Cache-Control: public, max-age=31536000, immutable\r\n";
 
-            client.close();
-        }
+        private static final String FILE_HEADERS =
+                "HTTP/1.1 %s\r\n" +
+                        "Content-Type: %s\r\n" +
+                        "Content-Length: %d\r\n" +
+                        "Accept-Ranges: bytes\r\n" +
+                        "Last-Modified: %s\r\n" +
+                        "%s";
+
+        private static final String FILE_RESPONSE =
+                FILE_HEADERS +
+                        "%s" +
+                        "%s" +
+                        "\r\n";
 
-        private static final String OK_RESPONSE =
+        private static final String METRICS_RESPONSE =
                 "HTTP/1.1 200 OK\r\n" +
-                        "Content-Type: application/octet-stream\r\n" +
+                        "Content-Type: %s\r\n" +
                         "Content-Length: %d\r\n" +
+                        "Cache-Control: no-store\r\n" +
+                        "%s" +
                         "\r\n";
 
-        private static final String OK_RESPONSE_JSON =
+        private static final String BATCH_RESPONSE =
                 "HTTP/1.1 200 OK\r\n" +
-                        "Content-Type: application/json\r\n" +
+                        "Content-Type: application/octet-stream\r\n" +
                         "Content-Length: %d\r\n" +
+                        "%s" +
                         "\r\n";
 
-        private static void sendFile(SocketChannel client, File file) throws IOException {
-            if (!client.isOpen()) return;
+        private static final int RETRY_AFTER_SECONDS = 5;
 
-            if (!file.exists()) {
-                sendError(client, 404);
-                return;
+        private static final String UNAVAILABLE_RESPONSE =
+                "HTTP/1.1 503 Service Unavailable\r\n" +
+                        "Retry-After: %d\r\n" +
+                        "Content-Length: 0\r\n" +
+                        "%s" +
+                        "\r\n";
+
+        private static HttpResponse unavailable(boolean keepAlive) {
+            return new HttpResponse(String.format(UNAVAILABLE_RESPONSE, RETRY_AFTER_SECONDS, connectionHeaders(keepAlive)), keepAlive);
+        }
+
+        private static final String NOT_MODIFIED_RESPONSE =
+                "HTTP/1.1 304 Not Modified\r\n" +
+                        "ETag: %s\r\n" +
+                        "%s" +
+                        "%s" +
+                        "\r\n";
+
+        private static final String RANGE_NOT_SATISFIABLE_RESPONSE =
+                "HTTP/1.1 416 Range Not Satisfiable\r\n" +
+                        "Content-Range: bytes */%d\r\n" +
+                        "Content-Length: 0\r\n" +
+                        "%s" +
+                        "\r\n";
+
+        private static final DateTimeFormatter HTTP_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+        private static String connectionHeaders(boolean keepAlive) {
+            if (!keepAlive) {
+                return "Connection: close\r\n";
+            }
+            return String.format("Connection: keep-alive\r\nKeep-Alive: timeout=%d, max=%d\r\n", serverConfig.hostKeepAliveTimeout, serverConfig.hostMaxRequestsPerConnection);
+        }
+
+        // Returns null if the file got too big to be cached since modpack was generated, it has to be streamed then
+        private static HttpResponse cachedFile(long generation, Path file, String cacheKey, String lastModified, String contentType, String extraHeaders, boolean keepAlive) throws IOException {
+            HotFileCache.Entry entry = HotFileCache.get(cacheKey, generation);
+            if (entry == null) {
+                byte[] body;
+                try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long fileSize = fileChannel.size();
+                    if (!HotFileCache.isCacheable(fileSize)) {
+                        return null;
+                    }
+                    ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+                    while (buffer.hasRemaining() && fileChannel.read(buffer) != -1) { }
+                    body = buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+                }
+                byte[] header = String.format(FILE_HEADERS, "200 OK", contentType, body.length, lastModified, extraHeaders).getBytes(StandardCharsets.UTF_8);
+                entry = new HotFileCache.Entry(header, body);
+                HotFileCache.put(cacheKey, entry, generation);
             }
 
-            try (client; FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer[] buffers = {
+                    ByteBuffer.wrap(entry.header()),
+                    ByteBuffer.wrap((connectionHeaders(keepAlive) + "\r\n").getBytes(StandardCharsets.UTF_8)),
+                    ByteBuffer.wrap(entry.body())
+            };
+            return new HttpResponse(buffers, keepAlive);
+        }
+
+        // generation of the snapshot route is from, cached files of other snapshots aren't used
+        private static HttpResponse file(long generation, Path file, String cacheKey, long expectedSize, long lastModifiedMillis, String etag, String contentType, String extraHeaders, boolean keepAlive, String range, String ifRange) {
+            FileChannel fileChannel = null;
+            try {
+                String lastModified = HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(lastModifiedMillis));
+                if (etag != null) {
+                    extraHeaders = "ETag: " + etag + "\r\n" + extraHeaders;
+                }
+
+                if (range == null && HotFileCache.isCacheable(expectedSize)) {
+                    HttpResponse response = cachedFile(generation, file, cacheKey, lastModified, contentType, extraHeaders, keepAlive);
+                    if (response != null) {
+                        return response;
+                    }
+                }
+
+                MappedFileCache.Mapping mapping = MappedFileCache.isMappable(expectedSize) ? MappedFileCache.acquire(file, expectedSize, generation) : null;
+                if (mapping != null) {
+                    return bufferedFile(mapping.slice(0, mapping.size()), mapping, lastModified, etag, contentType, extraHeaders, keepAlive, range, ifRange);
+                }
+
+                if (HttpResponse.getActiveTransfers() >= serverConfig.hostMaxTransfers) {
+                    return unavailable(keepAlive);
+                }
+
+                fileChannel = FileChannel.open(file, StandardOpenOption.READ);
                 long fileSize = fileChannel.size();
-                String response = String.format(OK_RESPONSE, fileSize);
 
-                if (file.getName().endsWith(".json")) {
-                    response = String.format(OK_RESPONSE_JSON, fileSize);
+                // If-Range means client wants only the part if its copy is still the same, otherwise the whole file
+                long[] byteRange = null;
+                if (range != null && (ifRange == null || ifRange.equals(lastModified) || ifRange.equals(etag))) {
+                    byteRange = parseRange(range, fileSize);
                 }
 
-                client.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)));
+                if (byteRange != null && byteRange.length == 0) {
+                    fileChannel.close();
+                    return new HttpResponse(String.format(RANGE_NOT_SATISFIABLE_RESPONSE, fileSize, connectionHeaders(keepAlive)), keepAlive);
+                }
 
-                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-                while (fileChannel.read(buffer) > 0 || buffer.position() > 0) {
-                    buffer.flip();
-                    while (buffer.hasRemaining() && client.isOpen() && fileChannel.isOpen()) {
-                        client.write(buffer);
-                    }
-                    buffer.compact();
+                if (byteRange != null) {
+                    long length = byteRange[1] - byteRange[0] + 1;
+                    String contentRange = String.format("Content-Range: bytes %d-%d/%d\r\n", byteRange[0], byteRange[1], fileSize);
+                    String header = String.format(FILE_RESPONSE, "206 Partial Content", contentType, length, lastModified, extraHeaders, contentRange, connectionHeaders(keepAlive));
+                    return new HttpResponse(header, fileChannel, byteRange[0], length, keepAlive);
                 }
+
+                String header = String.format(FILE_RESPONSE, "200 OK", contentType, fileSize, lastModified, extraHeaders, "", connectionHeaders(keepAlive));
+                return new HttpResponse(header, fileChannel, 0, fileSize, keepAlive);
+            } catch (NoSuchFileException e) { // removed since modpack was generated
+                return error(404, keepAlive);
             } catch (IOException e) {
                 e.printStackTrace();
-                if (client.isOpen()) {
-                    sendError(client, 500);
+                if (fileChannel != null) {
+                    try {
+                        fileChannel.close();
+                    } catch (IOException ignored) {
+                    }
                 }
+                return error(500, false);
+            }
+        }
+
+        // Same as file, but the whole body is already in memory or mapped. These responses don't hold the file open, so they don't count as transfers
+        private static HttpResponse bufferedFile(ByteBuffer content, MappedFileCache.Mapping mapping, String lastModified, String etag, String contentType, String extraHeaders, boolean keepAlive, String range, String ifRange) {
+            long fileSize = content.remaining();
+
+            long[] byteRange = null;
+            if (range != null && (ifRange == null || ifRange.equals(lastModified) || ifRange.equals(etag))) {
+                byteRange = parseRange(range, fileSize);
+            }
+
+            if (byteRange != null && byteRange.length == 0) {
+                if (mapping != null) mapping.release();
+                return new HttpResponse(String.format(RANGE_NOT_SATISFIABLE_RESPONSE, fileSize, connectionHeaders(keepAlive)), keepAlive);
+            }
+
+            String header;
+            ByteBuffer body;
+            if (byteRange != null) {
+                long length = byteRange[1] - byteRange[0] + 1;
+                String contentRange = String.format("Content-Range: bytes %d-%d/%d\r\n", byteRange[0], byteRange[1], fileSize);
+                header = String.format(FILE_RESPONSE, "206 Partial Content", contentType, length, lastModified, extraHeaders, contentRange, connectionHeaders(keepAlive));
+                body = content.slice((int) byteRange[0], (int) length);
+            } else {
+                header = String.format(FILE_RESPONSE, "200 OK", contentType, fileSize, lastModified, extraHeaders, "", connectionHeaders(keepAlive));
+                body = content;
+            }
+
+            ByteBuffer[] buffers = { ByteBuffer.wrap(header.getBytes(StandardCharsets.UTF_8)), body };
+            return new HttpResponse(buffers, mapping, keepAlive);
+        }
+
+        // Returns inclusive {start, end} of requested bytes, empty array if range can't be satisfied
+        // or null if header should be ignored and whole file sent (invalid syntax or multiple ranges)
+        private static long[] parseRange(String range, long fileSize) {
+            if (!range.startsWith("bytes=") || range.contains(",")) return null;
+
+            String spec = range.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) return null;
+
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+
+                if (first.isEmpty()) { // suffix range, last n bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0) return new long[0];
+                    return new long[] { Math.max(0, fileSize - suffix), fileSize - 1 };
+                }
+
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (start < 0 || end < start) return null;
+                if (start >= fileSize) return new long[0];
+
+                return new long[] { start, Math.min(end, fileSize - 1) };
+            } catch (NumberFormatException e) {
+                return null;
             }
         }
     }
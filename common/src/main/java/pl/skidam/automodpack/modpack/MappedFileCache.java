@@ -0,0 +1,152 @@
+package pl.skidam.automodpack.modpack;
+
+import pl.skidam.automodpack.utils.CustomFileUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static pl.skidam.automodpack.StaticVariables.serverConfig;
+
+/**
+ * Read-only memory mappings of files requested more than once (mostly big mods every client downloads),
+ * responses are written to the socket straight from the mapping and its pages stay in the page cache.
+ * Total size of mappings is limited by hostMappedFilesSizeMB, least recently used ones are unmapped first.
+ * Everything is unmapped on modpack generation.
+ */
+
+public class MappedFileCache {
+    private static final int MIN_REQUESTS = 2; // file gets mapped once it's requested again
+    private static final Map<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true); // access order, eldest is least recently used
+    private static final Map<Path, Integer> requestCounts = new HashMap<>();
+    private static long size = 0;
+    private static long generation = 0; // snapshot mappings belong to, files mapped for another snapshot aren't cached nor shared
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    /**
+     * Mapped file, shared by all responses sending it. Cache holds one reference until the mapping is evicted,
+     * every response one until it's released, file is unmapped when the last one is gone.
+     */
+    public static class Mapping {
+        private final MappedByteBuffer buffer;
+        private int references = 1;
+
+        private Mapping(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public long size() {
+            return buffer.capacity();
+        }
+
+        // Independent view of given part of the file, writing it doesn't affect other responses
+        public ByteBuffer slice(long position, long length) {
+            return buffer.slice((int) position, (int) length);
+        }
+
+        private synchronized void retain() {
+            references++;
+        }
+
+        public synchronized void release() {
+            if (--references == 0) {
+                CustomFileUtils.unmap(buffer);
+            }
+        }
+    }
+
+    public static boolean isMappable(long fileSize) {
+        return serverConfig.hostMappedFiles && fileSize > 0 && fileSize <= Integer.MAX_VALUE && fileSize <= maxSize();
+    }
+
+    /**
+     * @return mapping with a reference taken for the caller, who has to {@link Mapping#release()} it,
+     * or null if file should be read as usual (not requested often enough yet, changed or couldn't be mapped)
+     */
+    public static Mapping acquire(Path file, long expectedSize, long snapshotGeneration) {
+        synchronized (MappedFileCache.class) {
+            if (snapshotGeneration != generation) return null;
+            Mapping mapping = mappings.get(file);
+            if (mapping != null) {
+                hits.increment();
+                mapping.retain();
+                return mapping;
+            }
+            misses.increment();
+            if (requestCounts.merge(file, 1, Integer::sum) < MIN_REQUESTS) return null;
+        }
+
+        // mapping takes a while, don't block other requests meanwhile
+        Mapping mapping;
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (fileChannel.size() != expectedSize) return null; // changed since generation, don't map what we don't expect
+            mapping = new Mapping(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, expectedSize));
+        } catch (IOException e) {
+            return null;
+        }
+
+        synchronized (MappedFileCache.class) {
+            Mapping existing = mappings.get(file);
+            if (existing != null) { // someone else was faster
+                mapping.release();
+                existing.retain();
+                return existing;
+            }
+
+            if (snapshotGeneration != generation) return mapping; // only for this response, reference of the cache becomes the caller's
+
+            mappings.put(file, mapping);
+            size += mapping.size();
+            mapping.retain();
+
+            Iterator<Mapping> iterator = mappings.values().iterator();
+            while (size > maxSize() && iterator.hasNext()) {
+                Mapping eldest = iterator.next();
+                if (eldest == mapping) continue;
+                size -= eldest.size();
+                iterator.remove();
+                eldest.release();
+            }
+            return mapping;
+        }
+    }
+
+    // Called on modpack generation before the snapshot is published, responses still sending a file keep its mapping until they are done
+    public static synchronized void clear(long snapshotGeneration) {
+        for (Mapping mapping : mappings.values()) {
+            mapping.release();
+        }
+        mappings.clear();
+        requestCounts.clear();
+        size = 0;
+        generation = snapshotGeneration;
+    }
+
+    private static long maxSize() {
+        return serverConfig.hostMappedFilesSizeMB * 1024L * 1024L;
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static synchronized int getCount() {
+        return mappings.size();
+    }
+
+    public static synchronized long getSize() {
+        return size;
+    }
+}
@@ -1,6 +1,5 @@
 package pl.skidam.automodpack.modpack;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import pl.skidam.automodpack.Platform;
 import pl.skidam.automodpack.config.ConfigTools;
 import pl.skidam.automodpack.config.Jsons;
@@ -13,19 +12,30 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
 
 import static pl.skidam.automodpack.StaticVariables.*;
 public class Modpack {
     public static Path hostModpackDir = Path.of(automodpackDir + File.separator + "host-modpack");
     static Path hostModpackMods = Path.of(hostModpackDir + File.separator + "mods");
     public static File hostModpackContentFile = new File(hostModpackDir + File.separator + "modpack-content.json");
-    public static final int MAX_MODPACK_ADDITIONS = 10; // at the same time
-    private static ExecutorService CREATION_EXECUTOR;
-    public static List<CompletableFuture<Void>> creationFutures = new ArrayList<>();
+    // hashing waits on disk a good part of the time, so it can use more threads than cores, but too many would just make disk seek
+    private static final int CREATION_PARALLELISM = Math.min(Runtime.getRuntime().availableProcessors() * 2, 16);
+    private static final ForkJoinPool CREATION_POOL = new ForkJoinPool(CREATION_PARALLELISM, pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("AutoModpackCreation-" + thread.getPoolIndex());
+        return thread;
+    }, null, false);
     public static void generate() {
+        generate(false);
+    }
+
+    /**
+     * @param full hash every file again instead of using hashes of files which didn't change since last generation
+     */
+    public static void generate(boolean full) {
 
         long start = System.currentTimeMillis();
 
@@ -35,11 +45,20 @@ public class Modpack {
             e.printStackTrace();
         }
 
-        Content.create(hostModpackDir, hostModpackContentFile);
+        Content.create(hostModpackDir, hostModpackContentFile, full);
         if (!hostModpackContentFile.exists()) return;
         LOGGER.info("Modpack generated! took " + (System.currentTimeMillis() - start) + "ms");
     }
 
+    // Updates modpack with given changed files only, see Content#update
+    public static void update(Set<Path> changed) {
+
+        long start = System.currentTimeMillis();
+
+        Content.update(changed);
+        LOGGER.info("Modpack updated with " + changed.size() + " changed files! took " + (System.currentTimeMillis() - start) + "ms");
+    }
+
     private static void autoExcludeServerMods(List<Jsons.ModpackContentFields.ModpackContentItems> list) {
 
         if (Platform.Forge) return;
@@ -87,28 +106,23 @@ public class Modpack {
     public static class Content {
         public static Jsons.ModpackContentFields modpackContent;
 
-        public static void create(Path modpackDir, File modpackContentFile) {
+        public static synchronized void create(Path modpackDir, File modpackContentFile, boolean full) {
             try {
-                List<Jsons.ModpackContentFields.ModpackContentItems> list = new ArrayList<>();
-
-                ThreadFactory threadFactoryDownloads = new ThreadFactoryBuilder()
-                        .setNameFormat("AutoModpackCreation-%d")
-                        .build();
-
-                CREATION_EXECUTOR = Executors.newFixedThreadPool(
-                        MAX_MODPACK_ADDITIONS,
-                        threadFactoryDownloads
-                );
+                Map<String, Jsons.ModpackContentFields.ModpackContentItems> content = new ConcurrentHashMap<>(); // <modpack file, item>
+                HashCache.load(full);
 
+                // Synced files first, so files from host-modpack dir walked after them override them
                 if (serverConfig.syncedFiles.size() > 0) {
                     for (String file : serverConfig.syncedFiles) {
                         LOGGER.info("Syncing {}... ", file);
                         File fileToSync = new File("." + file);
-                        addAllContent(fileToSync, list);
+                        addAllContent(fileToSync, fileToSync, content);
                     }
                 }
 
-                addAllContent(modpackDir.toFile(), list);
+                addAllContent(modpackDir.toFile(), modpackDir.toFile(), content);
+
+                List<Jsons.ModpackContentFields.ModpackContentItems> list = new ArrayList<>(content.values());
 
                 if (list.size() == 0) {
                     LOGGER.warn("Modpack is empty! Nothing to generate!");
@@ -120,73 +134,158 @@ public class Modpack {
                     autoExcludeServerMods(list);
                 }
 
-                modpackContent = new Jsons.ModpackContentFields(null, list);
-                modpackContent.version = MC_VERSION;
-                modpackContent.modpackName = serverConfig.modpackName;
-                modpackContent.loader = Platform.getPlatformType().toString().toLowerCase();
-                modpackContent.modpackHash = CustomFileUtils.getHashFromStringOfHashes(ModpackContentTools.getStringOfAllHashes(modpackContent));
-
-                ConfigTools.saveConfig(modpackContentFile, modpackContent);
+                HashCache.save(true);
 
-                HttpServer.filesList.clear();
-                for (Jsons.ModpackContentFields.ModpackContentItems item : list) {
-                    HttpServer.filesList.add(item.file);
-                }
+                publish(list, modpackContentFile);
 
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
 
+        /**
+         * Updates current modpack content with given changed files or directories only, instead of walking and hashing everything again.
+         * @param changed paths in host modpack dir or in one of synced dirs, which were created, modified or deleted
+         */
+        public static synchronized void update(Set<Path> changed) {
+            if (modpackContent == null) {
+                create(hostModpackDir, hostModpackContentFile, false);
+                return;
+            }
 
-        private static void addAllContent(File modpackDir, List<Jsons.ModpackContentFields.ModpackContentItems> list) throws ExecutionException, InterruptedException {
-            if (!modpackDir.exists() || modpackDir.listFiles() == null) return;
+            try {
+                Map<String, Jsons.ModpackContentFields.ModpackContentItems> content = new ConcurrentHashMap<>(); // <modpack file, item>
+                for (Jsons.ModpackContentFields.ModpackContentItems item : modpackContent.list) {
+                    content.put(item.file, item);
+                }
+                HashCache.load(false);
 
-            File[] modpackDirFiles = modpackDir.listFiles();
-            if (modpackDirFiles == null) return;
+                for (Path path : changed) {
+                    String modpackFile = toModpackFile(path.toFile());
+                    if (modpackFile.isEmpty() || modpackFile.equals("/")) { // whole dir was replaced
+                        create(hostModpackDir, hostModpackContentFile, false);
+                        return;
+                    }
 
-            for (File file : modpackDirFiles) {
+                    content.keySet().removeIf(file -> file.equals(modpackFile) || file.startsWith(modpackFile + "/"));
 
-                while (creationFutures.size() >= MAX_MODPACK_ADDITIONS) { // Async Setting - max `some` fetches at the same time
-                    creationFutures = creationFutures.stream()
-                            .filter(future -> !future.isDone())
-                            .collect(Collectors.toList());
+                    // same order as create, so files from host modpack dir override synced ones
+                    File syncedDir = getSyncedDir(modpackFile);
+                    File syncedFile = new File("." + modpackFile);
+                    if (syncedDir != null && syncedFile.exists()) {
+                        addAllContent(syncedDir, syncedFile, content);
+                    }
+                    File hostFile = new File(hostModpackDir + modpackFile);
+                    if (hostFile.exists()) {
+                        addAllContent(hostModpackDir.toFile(), hostFile, content);
+                    }
+                }
+
+                List<Jsons.ModpackContentFields.ModpackContentItems> list = new ArrayList<>(content.values());
+
+                if (list.size() == 0) {
+                    LOGGER.warn("Modpack is empty! Nothing to generate!");
+                    return;
                 }
 
-                creationFutures.add(addContentAsync(modpackDir, file, list));
+                removeAutoModpackFilesFromContent(list);
+                if (serverConfig.autoExcludeServerSideMods) {
+                    autoExcludeServerMods(list);
+                }
+
+                HashCache.save(false);
+
+                publish(list, hostModpackContentFile);
+
+            } catch (Exception e) {
+                e.printStackTrace();
             }
+        }
+
+        // Saves modpack content of given list and makes host serve it
+        private static void publish(List<Jsons.ModpackContentFields.ModpackContentItems> list, File modpackContentFile) {
+            list.sort(Comparator.comparing(item -> item.file)); // files are added in parallel, sorted list keeps modpack hash the same
+            modpackContent = new Jsons.ModpackContentFields(null, list);
+            modpackContent.version = MC_VERSION;
+            modpackContent.modpackName = serverConfig.modpackName;
+            modpackContent.loader = Platform.getPlatformType().toString().toLowerCase();
+            modpackContent.modpackHash = CustomFileUtils.getHashFromStringOfHashes(ModpackContentTools.getStringOfAllHashes(modpackContent));
 
-            CompletableFuture.allOf(creationFutures.toArray(new CompletableFuture[0])).get();
+            Jsons.ModpackContentFields previousContent = ConfigTools.loadModpackContent(modpackContentFile);
+            ConfigTools.saveConfig(modpackContentFile, modpackContent);
+
+            RoutingTable.build(modpackContent, previousContent, modpackContentFile);
         }
 
-        private static CompletableFuture<Void> addContentAsync(File modpackDir, File file, List<Jsons.ModpackContentFields.ModpackContentItems> list) {
-            return CompletableFuture.runAsync(() -> {
-                try {
-                    addContent(modpackDir, file, list);
-                } catch (Exception e) {
-                    e.printStackTrace();
+        // Synced dir which given modpack file is from, null if it isn't in any
+        private static File getSyncedDir(String modpackFile) {
+            for (String syncedDir : serverConfig.syncedFiles) {
+                if ((modpackFile + "/").startsWith(syncedDir)) {
+                    return new File("." + syncedDir);
                 }
-            }, CREATION_EXECUTOR);
+            }
+            return null;
         }
 
-        private static void addContent(File modpackDir, File file, List<Jsons.ModpackContentFields.ModpackContentItems> list) throws Exception {
-            if (file.isDirectory()) {
-                if (file.getName().startsWith(".")) {
-                    return;
-                }
+        // Path of the file in modpack, same for file in host modpack dir and in server dir, e.g. /mods/some-mod.jar
+        private static String toModpackFile(File file) {
+            String modpackFile = file.toString().replace(hostModpackDir.toString(), "").replace("\\", "/");
+            if (modpackFile.startsWith(".")) modpackFile = modpackFile.substring(1);
+            return modpackFile;
+        }
 
-                File[] childFiles = file.listFiles();
-                if (childFiles == null) return;
 
-                for (File childFile : childFiles) {
-                    addContent(modpackDir, childFile, list);
+        /**
+         * Adds given file, or all files in given dir, to content. Every dir and file is a separate task,
+         * so idle threads take over parts of big dirs (like mods) instead of one thread walking them alone.
+         * @param modpackDir dir being synced, or host modpack dir
+         */
+        private static void addAllContent(File modpackDir, File file, Map<String, Jsons.ModpackContentFields.ModpackContentItems> content) {
+            CREATION_POOL.invoke(new AddContentTask(modpackDir, file, content));
+        }
+
+        private static class AddContentTask extends RecursiveAction {
+            private final File modpackDir;
+            private final File file;
+            private final Map<String, Jsons.ModpackContentFields.ModpackContentItems> content;
+
+            private AddContentTask(File modpackDir, File file, Map<String, Jsons.ModpackContentFields.ModpackContentItems> content) {
+                this.modpackDir = modpackDir;
+                this.file = file;
+                this.content = content;
+            }
+
+            @Override
+            protected void compute() {
+                if (file.isDirectory()) {
+                    if (file.getName().startsWith(".")) {
+                        return;
+                    }
+
+                    File[] childFiles = file.listFiles();
+                    if (childFiles == null) return;
+
+                    List<AddContentTask> tasks = new ArrayList<>(childFiles.length);
+                    for (File childFile : childFiles) {
+                        tasks.add(new AddContentTask(modpackDir, childFile, content));
+                    }
+                    invokeAll(tasks);
+                } else {
+                    try {
+                        addContent(modpackDir, file, content);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
                 }
-            } else if (file.isFile()) {
+            }
+        }
+
+        private static void addContent(File modpackDir, File file, Map<String, Jsons.ModpackContentFields.ModpackContentItems> content) throws Exception {
+            if (file.isFile()) {
                 if (file.equals(hostModpackContentFile)) {
                     return;
                 }
-                String modpackFile = file.toString().replace(hostModpackDir.toString(), "").replace("\\", "/");
-                if (modpackFile.charAt(0) == '.') modpackFile = modpackFile.substring(1);
+                String modpackFile = toModpackFile(file);
                 String link = modpackFile;
                 String size = String.valueOf(file.length());
                 String type = "other";
@@ -236,30 +335,48 @@ public class Modpack {
                     }
                 }
 
-                String sha1 = CustomFileUtils.getHashWithRetry(file, "SHA-1");
+                String sha1;
                 String murmurHash = null;
 
-                if (file.getName().endsWith(".jar")) {
-                    modId = JarUtilities.getModIdFromJar(file, true);
-                    type = modId == null ? "other" : "mod";
-                    if (type.equals("mod")) {
-                        version = JarUtilities.getModVersion(file);
-                        murmurHash = CustomFileUtils.getHashWithRetry(file, "murmur");
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                HashCache.Entry cached = HashCache.get(file, attributes);
+                if (cached != null) { // unchanged since last generation
+                    sha1 = cached.sha1;
+                    murmurHash = cached.murmur;
+                    modId = cached.modId;
+                    version = cached.version;
+                    type = cached.type;
+                } else {
+                    if (file.getName().endsWith(".jar")) {
+                        modId = JarUtilities.getModIdFromJar(file, true);
+                        type = modId == null ? "other" : "mod";
+                        if (type.equals("mod")) {
+                            version = JarUtilities.getModVersion(file);
+                        }
                     }
-                }
 
-                if (type.equals("other")) {
-                    if (modpackFile.contains("/config/")) {
-                        type = "config";
-                    } else if (modpackFile.contains("/shaderpacks/")) {
-                        type = "shaderpack";
-                        murmurHash = CustomFileUtils.getHashWithRetry(file, "murmur");
-                    } else if (modpackFile.contains("/resourcepacks/")) {
-                        type = "resourcepack";
-                        murmurHash = CustomFileUtils.getHashWithRetry(file, "murmur");
-                    } else if (modpackFile.endsWith("/options.txt")) {
-                        type = "mc_options";
+                    if (type.equals("other")) {
+                        if (modpackFile.contains("/config/")) {
+                            type = "config";
+                        } else if (modpackFile.contains("/shaderpacks/")) {
+                            type = "shaderpack";
+                        } else if (modpackFile.contains("/resourcepacks/")) {
+                            type = "resourcepack";
+                        } else if (modpackFile.endsWith("/options.txt")) {
+                            type = "mc_options";
+                        }
+                    }
+
+                    // murmur is needed to find the file on CurseForge, both hashes come from a single read of the file
+                    if (type.equals("mod") || type.equals("shaderpack") || type.equals("resourcepack")) {
+                        Map<String, String> hashes = CustomFileUtils.getHashesWithRetry(file, "SHA-1", "murmur");
+                        sha1 = hashes.get("SHA-1");
+                        murmurHash = hashes.get("murmur");
+                    } else {
+                        sha1 = CustomFileUtils.getHashWithRetry(file, "SHA-1");
                     }
+
+                    HashCache.put(file, attributes, new HashCache.Entry(sha1, murmurHash, modId, version, type));
                 }
 
                 for (String editableFile : serverConfig.allowEditsInFiles) {
@@ -269,20 +386,12 @@ public class Modpack {
                     }
                 }
 
-                // It should overwrite existing file in the list
+                // It should overwrite existing file in the content
                 // because first this syncs files from server running dir
                 // And then it gets files from host-modpack dir
                 // So we want to overwrite files from server running dir with files from host-modpack dir
                 // if there are likely same or a bit changed
-                List<Jsons.ModpackContentFields.ModpackContentItems> copyList = new ArrayList<>(list);
-                for (Jsons.ModpackContentFields.ModpackContentItems item : copyList) {
-                    if (item.file.equals(modpackFile)) {
-                        list.remove(item);
-                        break;
-                    }
-                }
-
-                list.add(new Jsons.ModpackContentFields.ModpackContentItems(modpackFile, link, size, type, isEditable, modId, version, sha1, murmurHash));
+                content.put(modpackFile, new Jsons.ModpackContentFields.ModpackContentItems(modpackFile, link, size, type, isEditable, modId, version, sha1, murmurHash));
             }
         }
 
@@ -0,0 +1,127 @@
+package pl.skidam.automodpack.modpack;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static pl.skidam.automodpack.StaticVariables.*;
+import static pl.skidam.automodpack.modpack.Modpack.hostModpackContentFile;
+import static pl.skidam.automodpack.modpack.Modpack.hostModpackDir;
+
+/**
+ * Watches host modpack dir and synced dirs, and updates modpack with the changed files once they stop changing,
+ * so adding a mod doesn't need /automodpack generate.
+ */
+
+public class ModpackWatcher {
+    private static final long DEBOUNCE = 2000; // ms without any change before modpack is updated
+    private static WatchService watchService;
+
+    public static synchronized void start() {
+        if (!serverConfig.generateModpackOnChanges || watchService != null) return;
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Map<WatchKey, Path> dirs = new HashMap<>();
+            register(watchService, dirs, hostModpackDir);
+            for (String syncedDir : serverConfig.syncedFiles) {
+                register(watchService, dirs, Path.of("." + syncedDir));
+            }
+
+            WatchService service = watchService;
+            Thread thread = new Thread(() -> watch(service, dirs), "AutoModpackWatcher");
+            thread.setDaemon(true);
+            thread.start();
+            LOGGER.info("Watching {} modpack directories for changes", dirs.size());
+        } catch (IOException e) {
+            LOGGER.error("Failed to watch modpack files", e);
+            stop();
+        }
+    }
+
+    public static synchronized void stop() {
+        if (watchService == null) return;
+        try {
+            watchService.close(); // watching thread ends once it notices
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        watchService = null;
+    }
+
+    private static void watch(WatchService service, Map<WatchKey, Path> dirs) {
+        try {
+            while (true) {
+                Set<Path> changed = new HashSet<>();
+                boolean overflow = false;
+
+                // collect whole burst (e.g. copying bunch of mods) till nothing changes for a while
+                WatchKey key = service.take();
+                while (key != null) {
+                    overflow |= collect(service, key, dirs, changed);
+                    key = service.poll(DEBOUNCE, TimeUnit.MILLISECONDS);
+                }
+
+                if (overflow) { // some events were lost, we don't know what changed
+                    Modpack.generate();
+                } else if (!changed.isEmpty()) {
+                    Modpack.update(changed);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        } catch (Exception e) {
+            LOGGER.error("Stopped watching modpack files", e);
+        }
+    }
+
+    // Returns true if events overflowed
+    private static boolean collect(WatchService service, WatchKey key, Map<WatchKey, Path> dirs, Set<Path> changed) {
+        boolean overflow = false;
+        Path dir = dirs.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || dir == null) {
+                overflow = true;
+                continue;
+            }
+
+            Path path = dir.resolve((Path) event.context());
+            if (path.equals(hostModpackContentFile.toPath())) continue; // that's us saving it
+
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    register(service, dirs, path);
+                } catch (IOException e) { // deleted meanwhile, there will be another event for it
+                    LOGGER.warn("Failed to watch {}", path, e);
+                }
+            }
+            changed.add(path);
+        }
+
+        if (!key.reset()) { // dir is gone
+            dirs.remove(key);
+        }
+        return overflow;
+    }
+
+    private static void register(WatchService service, Map<WatchKey, Path> dirs, Path root) throws IOException {
+        if (!Files.isDirectory(root)) return;
+
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (!dir.equals(root) && dir.getFileName().toString().startsWith(".")) {
+                    return FileVisitResult.SKIP_SUBTREE; // hidden dirs aren't in modpack
+                }
+                dirs.put(dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,157 @@
+package pl.skidam.automodpack.modpack;
+
+import pl.skidam.automodpack.config.Jsons;
+import pl.skidam.automodpack.utils.DeltaFormat;
+import pl.skidam.automodpack.utils.ModpackContentTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static pl.skidam.automodpack.StaticVariables.LOGGER;
+import static pl.skidam.automodpack.modpack.Modpack.hostModpackDir;
+
+/**
+ * Everything host serves, resolved once per modpack generation so requests are just a map lookup.
+ * Each generation is an immutable {@link Snapshot} published with a single swap, a request takes the current one
+ * once and uses it till the end, so it never mixes manifest of one generation with files of another.
+ */
+
+public class RoutingTable {
+    private static final AtomicReference<Snapshot> current = new AtomicReference<>(new Snapshot(0, Map.of(), Map.of(), Map.of(), null, null, null, 0));
+
+    /**
+     * @param etag quoted strong validator (item sha1 or modpack hash), null if unknown
+     * @param gzip compressed variant of the file, null if there is none
+     * @param immutable content behind this path never changes, caches can keep it for good
+     */
+    public record Route(Path path, long size, long lastModified, String contentType, String etag, File gzip, long gzipSize, boolean immutable) {
+        // compressed variant is a different representation, so it needs its own strong etag
+        public String gzipEtag() {
+            return RoutingTable.gzipEtag(etag);
+        }
+
+        // False if file was changed since generation, it isn't what its hash says anymore
+        public boolean isUnchanged() {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModified;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @param routes <request path, route>
+     * @param files <sha1, route>, content addressed index of the same files
+     * @param deltas <"old sha1/new sha1", route> of deltas from previous versions of the files
+     * @param manifest modpack content as it was saved, kept in memory so regenerating it can't change it under requests
+     * @param manifestGzip compressed manifest, null if compression is disabled or didn't help
+     */
+    public record Snapshot(long generation, Map<String, Route> routes, Map<String, Route> files, Map<String, Route> deltas,
+                           byte[] manifest, byte[] manifestGzip, String manifestEtag, long manifestLastModified) {
+
+        // sha1 paths are looked up in the index, "/sha1/<hash>", deltas by both hashes, "/delta/<old sha1>/<new sha1>"
+        public Route get(String requestPath) {
+            if (requestPath.startsWith(ModpackContentTools.SHA1_PATH)) {
+                return files.get(requestPath.substring(ModpackContentTools.SHA1_PATH.length()));
+            }
+            if (requestPath.startsWith(DeltaFormat.PATH)) {
+                return deltas.get(requestPath.substring(DeltaFormat.PATH.length()));
+            }
+            return routes.get(requestPath);
+        }
+
+        public static boolean isManifest(String requestPath) {
+            return requestPath.isEmpty() || requestPath.equals("/");
+        }
+
+        public String manifestGzipEtag() {
+            return RoutingTable.gzipEtag(manifestEtag);
+        }
+
+        private Set<File> gzipFiles() {
+            Set<File> gzipFiles = new HashSet<>();
+            for (Route route : routes.values()) {
+                if (route.gzip() != null) gzipFiles.add(route.gzip());
+            }
+            return gzipFiles;
+        }
+    }
+
+    public static Snapshot current() {
+        return current.get();
+    }
+
+    /**
+     * Builds snapshot of given generation (also prepares compressed variants and deltas, they are part of it) and publishes it.
+     * Requests already in progress finish with the previous snapshot, so its compressed variants are kept for one more generation.
+     * @param previousContent modpack content this generation replaces, deltas are made from its files, null if there is none
+     */
+    public static synchronized void build(Jsons.ModpackContentFields modpackContent, Jsons.ModpackContentFields previousContent, File modpackContentFile) {
+        Snapshot previous = current.get();
+        List<Jsons.ModpackContentFields.ModpackContentItems> list = modpackContent.list;
+        Map<String, File> gzipVariants = CompressedVariants.generate(list, previous.gzipFiles());
+        Map<String, File> deltaFiles = DeltaVariants.generate(previousContent, list);
+
+        Map<String, Route> routes = new HashMap<>();
+        Map<String, Route> files = new HashMap<>();
+        for (Jsons.ModpackContentFields.ModpackContentItems item : list) {
+            File file = new File(hostModpackDir + File.separator + item.file);
+            if (!file.isFile()) {
+                file = new File("./" + item.file);
+                if (!file.isFile()) continue;
+            }
+            File gzip = gzipVariants.get(item.file);
+            routes.put(item.file, route(file, item.sha1, gzip, false));
+            // content addressed path, same for identical files in different folders and doesn't change on rename
+            if (item.sha1 != null && !item.sha1.isEmpty() && String.valueOf(file.length()).equals(item.size)) {
+                files.putIfAbsent(item.sha1, route(file, item.sha1, gzip, true));
+            }
+        }
+
+        Map<String, Route> deltas = new HashMap<>();
+        for (Map.Entry<String, File> delta : deltaFiles.entrySet()) {
+            deltas.put(delta.getKey(), route(delta.getValue(), delta.getKey().replace('/', '-'), null, true));
+        }
+
+        byte[] manifest = null;
+        byte[] manifestGzip = null;
+        try {
+            manifest = Files.readAllBytes(modpackContentFile.toPath());
+            manifestGzip = CompressedVariants.compress(manifest);
+        } catch (IOException e) {
+            LOGGER.error("Failed to read modpack content file", e);
+        }
+
+        // caches switch first, so requests still using the previous snapshot can't put its files there anymore
+        long generation = previous.generation() + 1;
+        HotFileCache.clear(generation);
+        MappedFileCache.clear(generation);
+        current.set(new Snapshot(generation, Collections.unmodifiableMap(routes), Collections.unmodifiableMap(files), Collections.unmodifiableMap(deltas),
+                manifest, manifestGzip, etag(modpackContent.modpackHash), modpackContentFile.lastModified()));
+    }
+
+    private static Route route(File file, String hash, File gzip, boolean immutable) {
+        String contentType = file.getName().endsWith(".json") ? "application/json" : "application/octet-stream";
+        return new Route(file.toPath(), file.length(), file.lastModified(), contentType, etag(hash), gzip, gzip != null ? gzip.length() : 0, immutable);
+    }
+
+    private static String etag(String hash) {
+        return hash == null || hash.isEmpty() ? null : "\"" + hash + "\"";
+    }
+
+    private static String gzipEtag(String etag) {
+        return etag == null ? null : etag.substring(0, etag.length() - 1) + "-gzip\"";
+    }
+}
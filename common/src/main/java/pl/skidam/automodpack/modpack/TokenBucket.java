@@ -0,0 +1,57 @@
+package pl.skidam.automodpack.modpack;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes which can be sent right now, refilled at a constant rate up to the capacity.
+ */
+
+public class TokenBucket {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private final long rate; // bytes per second
+    private final long capacity;
+    private long tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(long rate, long capacity) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+    }
+
+    // Returns how many of wanted bytes can be sent, zero if bucket is empty
+    public synchronized long take(long wanted) {
+        refill();
+        long granted = Math.min(wanted, tokens);
+        tokens -= granted;
+        return granted;
+    }
+
+    public synchronized void giveBack(long unused) {
+        tokens = Math.min(capacity, tokens + unused);
+    }
+
+    // How long until there is enough tokens to send a chunk of given size (or a full bucket if it's smaller)
+    public synchronized long nanosUntilAvailable(long chunk) {
+        refill();
+        long missing = Math.min(chunk, capacity) - tokens;
+        if (missing <= 0) return 0;
+        return missing * SECOND / rate + 1;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRefill;
+        if (elapsed >= SECOND) { // also avoids overflow below
+            tokens = capacity;
+            lastRefill = now;
+            return;
+        }
+
+        long added = elapsed * rate / SECOND;
+        if (added <= 0) return;
+
+        tokens = Math.min(capacity, tokens + added);
+        lastRefill = tokens == capacity ? now : lastRefill + added * SECOND / rate;
+    }
+}
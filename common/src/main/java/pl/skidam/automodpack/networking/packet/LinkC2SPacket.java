@@ -35,7 +35,7 @@ public class LinkC2SPacket {
         clientConfig.selectedModpack = modpackFileName;
         ConfigTools.saveConfig(clientConfigFile, clientConfig);
 
-        Jsons.ModpackContentFields serverModpackContent = ModpackUtils.getServerModpackContent(link);
+        Jsons.ModpackContentFields serverModpackContent = ModpackUtils.getServerModpackContent(link, modpackDir);
 
         boolean isUpdate = ModpackUtils.isUpdate(serverModpackContent, modpackDir);
 
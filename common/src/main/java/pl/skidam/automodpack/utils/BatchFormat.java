@@ -0,0 +1,57 @@
+package pl.skidam.automodpack.utils;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Format of the batch endpoint, used to download many small files with one request.
+ * Client POSTs paths of the files separated by new lines, host answers with one frame for each of them:
+ * path length (int), path (UTF-8), data length (int, -1 if host didn't send the file) and data.
+ */
+
+public class BatchFormat {
+    public static final String PATH = "/batch";
+    public static final int MAX_FILE_SIZE = 64 * 1024; // bigger files are downloaded one by one
+    public static final int MAX_FILES = 512;
+    public static final int MAX_RESPONSE_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * @param data null if host didn't send this file, client has to download it on its own
+     */
+    public record Entry(String path, byte[] data) { }
+
+    // Frame header, data goes right after it
+    public static ByteBuffer header(String path, int dataLength) {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + pathBytes.length + 4);
+        header.putInt(pathBytes.length).put(pathBytes).putInt(dataLength);
+        return header.flip();
+    }
+
+    // Returns null after the last entry
+    public static Entry read(DataInputStream inputStream) throws IOException {
+        int pathLength;
+        try {
+            pathLength = inputStream.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (pathLength < 0 || pathLength > 64 * 1024) throw new IOException("Invalid batch entry");
+
+        byte[] path = new byte[pathLength];
+        inputStream.readFully(path);
+
+        int dataLength = inputStream.readInt();
+        if (dataLength > MAX_FILE_SIZE) throw new IOException("Invalid batch entry");
+
+        byte[] data = null;
+        if (dataLength >= 0) {
+            data = new byte[dataLength];
+            inputStream.readFully(data);
+        }
+        return new Entry(new String(path, StandardCharsets.UTF_8), data);
+    }
+}
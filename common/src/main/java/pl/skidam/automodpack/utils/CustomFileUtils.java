@@ -9,13 +9,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -25,6 +34,27 @@ import java.util.zip.ZipOutputStream;
 
 public class CustomFileUtils {
     private static final long maxEmptyZipFolderSize = 168;
+    private static final int HASHING_CHUNK_SIZE = 1024 * 1024;
+    private static final ThreadLocal<byte[]> HASHING_CHUNK = ThreadLocal.withInitial(() -> new byte[HASHING_CHUNK_SIZE]); // hashing threads go through many files
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            StaticVariables.LOGGER.warn("Can't unmap files right away, they will be unmapped once garbage collected");
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
 
     public static void forceDelete(File file, boolean deleteOnExit) {
         if (file.exists()) {
@@ -171,12 +201,7 @@ public class CustomFileUtils {
     public static String getHashFromStringOfHashes(String hashes) {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            byte[] hashBytes = digest.digest(hashes.getBytes(StandardCharsets.UTF_8));
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hashBytes) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
+            return toHex(digest.digest(hashes.getBytes(StandardCharsets.UTF_8)));
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
             return null;
@@ -222,104 +247,205 @@ public class CustomFileUtils {
             }
         }
 
-        byte[] digest = md.digest();
-        StringBuilder sb = new StringBuilder();
-        for (byte b : digest) {
-            sb.append(String.format("%02x", b & 0xff));
+        return toHex(md.digest());
+    }
+
+
+    public static Map<String, String> getHashesWithRetry(File file, String... algorithms) throws NoSuchAlgorithmException {
+        try {
+            return getHashes(file, algorithms);
+        } catch (NoSuchAlgorithmException e) {
+            throw e;
+        } catch (Exception e) {
+            // ignore NullPointerException
         }
 
-        return sb.toString();
+        File tempFile = new File(StaticVariables.automodpackDir + File.separator + file.getName() + ".tmp");
+        try {
+            CustomFileUtils.copyFile(file, tempFile);
+            return getHashes(tempFile, algorithms);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("AutoModpack - Cannot copy file for hashing: " + file.getAbsolutePath(), e);
+        } finally {
+            tempFile.delete();
+        }
     }
 
+    /**
+     * Hashes of the file with all given algorithms at once, file is read from disk only once.
+     * Every digest is fed from the same pass, murmur goes over the file again but from memory.
+     * @return <algorithm, hash>
+     */
+    public static Map<String, String> getHashes(File file, String... algorithms) throws Exception {
 
-    private static String getCurseforgeMurmurHash(Path file) throws IOException {
-
-        if (!Files.exists(file)) return null;
+        if (!file.exists()) return null;
 
-        final int m = 0x5bd1e995;
-        final int r = 24;
-        long k = 0x0L;
-        int seed = 1;
-        int shift = 0x0;
+        Map<String, MessageDigest> digests = new LinkedHashMap<>();
+        boolean murmur = false;
+        for (String algorithm : algorithms) {
+            if (algorithm.equals("murmur")) {
+                murmur = true;
+            } else {
+                digests.put(algorithm, MessageDigest.getInstance(algorithm));
+            }
+        }
 
-        // get file size
-        long flength = Files.size(file);
+        Map<String, String> hashes = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) { // can't be mapped at once, hash it the usual way
+                for (String algorithm : algorithms) {
+                    hashes.put(algorithm, getHash(file, algorithm));
+                }
+                return hashes;
+            }
 
-        // convert file to byte array
-        byte[] byteFile = Files.readAllBytes(file);
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try {
+                byte[] chunk = HASHING_CHUNK.get();
+                long murmurLength = 0;
+                for (int position = 0; position < size; position += chunk.length) {
+                    int length = (int) Math.min(chunk.length, size - position);
+                    mapping.get(position, chunk, 0, length);
+                    for (MessageDigest digest : digests.values()) {
+                        digest.update(chunk, 0, length);
+                    }
+                    if (murmur) {
+                        murmurLength += Murmur.count(chunk, length);
+                    }
+                }
 
-        long length = 0;
-        char b;
-        // get good bytes from file
-        for (int i = 0; i < flength; i++) {
-            b = (char) byteFile[i];
+                for (Map.Entry<String, MessageDigest> digest : digests.entrySet()) {
+                    hashes.put(digest.getKey(), toHex(digest.getValue().digest()));
+                }
 
-            if (b == 0x9 || b == 0xa || b == 0xd || b == 0x20) {
-                continue;
+                if (murmur) { // needs the count before it starts, so it goes over the file again, pages are in memory by now
+                    Murmur murmurHash = new Murmur(murmurLength);
+                    for (int position = 0; position < size; position += chunk.length) {
+                        int length = (int) Math.min(chunk.length, size - position);
+                        mapping.get(position, chunk, 0, length);
+                        murmurHash.update(chunk, length);
+                    }
+                    hashes.put("murmur", murmurHash.finish());
+                }
+            } catch (InternalError e) { // file was truncated while mapped
+                throw new IOException("File changed while hashing: " + file, e);
+            } finally {
+                unmap(mapping);
             }
-
-            length += 1;
         }
-        long h = (seed ^ length);
 
-        for (int i = 0; i < flength; i++) {
-            b = (char) byteFile[i];
+        return hashes;
+    }
+
+    /**
+     * CurseForge fingerprint, MurmurHash2 with seed 1 of the file without whitespace (tab, new line, carriage return and space).
+     * Length of the hashed data is part of the initial state, so it has to be counted before hashing.
+     */
+    private static final class Murmur {
+        private static final int M = 0x5bd1e995;
+        private int h;
+        private int k = 0;
+        private int shift = 0;
+
+        private Murmur(long length) {
+            h = 1 ^ (int) length;
+        }
 
-            if (b == 0x9 || b == 0xa || b == 0xd || b == 0x20) {
-                continue;
+        private static long count(byte[] data, int length) {
+            long count = 0;
+            for (int i = 0; i < length; i++) {
+                if (!isWhitespace(data[i])) {
+                    count++;
+                }
             }
+            return count;
+        }
 
-            if (b > 255) {
-                while (b > 255) {
-                    b -= 255;
+        private void update(byte[] data, int length) {
+            for (int i = 0; i < length; i++) {
+                byte b = data[i];
+                if (isWhitespace(b)) continue;
+
+                k |= (b & 0xff) << shift;
+                shift += 8;
+                if (shift == 32) {
+                    k *= M;
+                    k ^= k >>> 24;
+                    k *= M;
+                    h *= M;
+                    h ^= k;
+                    k = 0;
+                    shift = 0;
                 }
             }
+        }
 
-            k = k | ((long) b << shift);
+        private String finish() {
+            if (shift > 0) {
+                h ^= k;
+                h *= M;
+            }
 
-            shift = shift + 0x8;
+            h ^= h >>> 13;
+            h *= M;
+            h ^= h >>> 15;
 
-            if (shift == 0x20) {
-                h = 0x00000000FFFFFFFFL & h;
+            return Integer.toUnsignedString(h);
+        }
 
-                k = k * m;
-                k = 0x00000000FFFFFFFFL & k;
+        private static boolean isWhitespace(byte b) {
+            return b == 0x9 || b == 0xa || b == 0xd || b == 0x20;
+        }
+    }
 
-                k = k ^ (k >> r);
-                k = 0x00000000FFFFFFFFL & k;
+    private static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
 
-                k = k * m;
-                k = 0x00000000FFFFFFFFL & k;
+    // Mappings can be unmapped right away only through Unsafe, without it they are unmapped once garbage collected
+    public static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+        }
+    }
 
-                h = h * m;
-                h = 0x00000000FFFFFFFFL & h;
+    // Reads the file twice, first to count bytes murmur hashes, then to hash them, so memory use doesn't depend on file size
+    private static String getCurseforgeMurmurHash(Path file) throws IOException {
 
-                h = h ^ k;
-                h = 0x00000000FFFFFFFFL & h;
+        if (!Files.exists(file)) return null;
 
-                k = 0x0;
-                shift = 0x0;
+        byte[] buffer = new byte[64 * 1024];
+        long length = 0;
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                length += Murmur.count(buffer, read);
             }
         }
 
-        if (shift > 0) {
-            h = h ^ k;
-            h = 0x00000000FFFFFFFFL & h;
-
-            h = h * m;
-            h = 0x00000000FFFFFFFFL & h;
+        Murmur murmur = new Murmur(length);
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                murmur.update(buffer, read);
+            }
         }
 
-        h = h ^ (h >> 13);
-        h = 0x00000000FFFFFFFFL & h;
-
-        h = h * m;
-        h = 0x00000000FFFFFFFFL & h;
-
-        h = h ^ (h >> 15);
-        h = 0x00000000FFFFFFFFL & h;
+        return murmur.finish();
+    }
 
-        return String.valueOf(h);
+    public static String getHash(byte[] data, String algorithm) throws NoSuchAlgorithmException {
+        return toHex(MessageDigest.getInstance(algorithm).digest(data));
     }
 
     public static boolean compareFileHashes(File file1, File file2, String algorithm) throws Exception {
@@ -0,0 +1,206 @@
+package pl.skidam.automodpack.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary delta between two versions of a file, so client which has the old version downloads just what changed.
+ * New file is described by instructions: COPY a range of the old file, or ADD bytes which are in the delta itself.
+ * Format: magic (int), new file length (long), instructions, END.
+ * COPY: byte 1, old file offset (long), length (int). ADD: byte 2, length (int), bytes. END: byte 0.
+ * Matches are found like rsync does it, old file is indexed in blocks and new file is scanned with a rolling hash.
+ */
+
+public class DeltaFormat {
+    public static final String PATH = "/delta/"; // /delta/<old sha1>/<new sha1>
+    private static final int MAGIC = 0x414D4431; // "AMD1"
+    private static final byte END = 0;
+    private static final byte COPY = 1;
+    private static final byte ADD = 2;
+    private static final int BLOCK_SIZE = 32;
+    private static final int MAX_PROBES = 8;
+    private static final long PRIME = 0x100000001B3L;
+
+    /**
+     * Writes delta which makes target from source to output. Files are read through given buffers (usually mappings),
+     * only the block index of the source is on the heap.
+     * @param maxSize delta is given up once it gets bigger than this
+     * @return false if delta was given up, output is incomplete then
+     */
+    public static boolean create(ByteBuffer source, ByteBuffer target, OutputStream output, long maxSize) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        int sourceLength = source.limit();
+        int targetLength = target.limit();
+        out.writeInt(MAGIC);
+        out.writeLong(targetLength);
+
+        int addStart = 0;
+        if (sourceLength >= BLOCK_SIZE && targetLength >= BLOCK_SIZE) {
+            int[] index = index(source);
+            int mask = index.length - 1;
+            long outFactor = power(PRIME, BLOCK_SIZE - 1);
+
+            int position = 0;
+            long hash = hash(target, 0);
+            while (true) {
+                int match = find(index, mask, hash, source, target, position);
+                if (match != -1) {
+                    int sourceStart = match;
+                    int targetStart = position;
+                    // extend the match to both sides, bytes around the block often match too
+                    while (targetStart > addStart && sourceStart > 0 && target.get(targetStart - 1) == source.get(sourceStart - 1)) {
+                        targetStart--;
+                        sourceStart--;
+                    }
+                    int end = position + BLOCK_SIZE;
+                    int sourceEnd = match + BLOCK_SIZE;
+                    while (end < targetLength && sourceEnd < sourceLength && target.get(end) == source.get(sourceEnd)) {
+                        end++;
+                        sourceEnd++;
+                    }
+
+                    writeAdd(out, target, addStart, targetStart);
+                    out.writeByte(COPY);
+                    out.writeLong(sourceStart);
+                    out.writeInt(end - targetStart);
+                    if (out.size() > maxSize) return false;
+
+                    position = end;
+                    addStart = end;
+                    if (position + BLOCK_SIZE > targetLength) break;
+                    hash = hash(target, position);
+                    continue;
+                }
+
+                if (position + BLOCK_SIZE >= targetLength) break;
+                hash = (hash - target.get(position) * outFactor) * PRIME + target.get(position + BLOCK_SIZE);
+                position++;
+            }
+        }
+
+        writeAdd(out, target, addStart, targetLength);
+        out.writeByte(END);
+        out.flush();
+        return out.size() <= maxSize;
+    }
+
+    /**
+     * Writes new file made from source and delta to output.
+     * @throws IOException if delta is invalid or doesn't fit the source, output is incomplete then
+     */
+    public static void apply(FileChannel source, DataInputStream delta, OutputStream output) throws IOException {
+        if (delta.readInt() != MAGIC) throw new IOException("Invalid delta");
+        long targetLength = delta.readLong();
+        long sourceLength = source.size();
+        long written = 0;
+        byte[] buffer = new byte[64 * 1024];
+
+        while (true) {
+            byte instruction = delta.readByte();
+            if (instruction == END) break;
+
+            if (instruction == COPY) {
+                long offset = delta.readLong();
+                int length = delta.readInt();
+                if (offset < 0 || length < 0 || offset + length > sourceLength || written + length > targetLength) throw new IOException("Invalid delta");
+                long end = offset + length;
+                while (offset < end) {
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - offset));
+                    while (chunk.hasRemaining()) {
+                        if (source.read(chunk, offset + chunk.position()) == -1) throw new IOException("Source file is shorter than expected");
+                    }
+                    output.write(buffer, 0, chunk.position());
+                    offset += chunk.position();
+                }
+                written += length;
+            } else if (instruction == ADD) {
+                int length = delta.readInt();
+                if (length < 0 || written + length > targetLength) throw new IOException("Invalid delta");
+                int remaining = length;
+                while (remaining > 0) {
+                    int count = Math.min(buffer.length, remaining);
+                    delta.readFully(buffer, 0, count);
+                    output.write(buffer, 0, count);
+                    remaining -= count;
+                }
+                written += length;
+            } else {
+                throw new IOException("Invalid delta");
+            }
+        }
+
+        if (written != targetLength) throw new IOException("Invalid delta");
+    }
+
+    private static void writeAdd(DataOutputStream out, ByteBuffer target, int from, int to) throws IOException {
+        if (to <= from) return;
+        out.writeByte(ADD);
+        out.writeInt(to - from);
+        byte[] chunk = new byte[Math.min(to - from, 64 * 1024)];
+        for (int position = from; position < to; position += chunk.length) {
+            int length = Math.min(chunk.length, to - position);
+            target.get(position, chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    // Open addressing table of block offsets (+1, 0 is empty) by hash, first block with given content wins
+    private static int[] index(ByteBuffer source) {
+        int blocks = source.limit() / BLOCK_SIZE;
+        int[] index = new int[Integer.highestOneBit(Math.max(blocks, 1) * 2 - 1) << 1];
+        int mask = index.length - 1;
+        for (int block = 0; block < blocks; block++) {
+            int offset = block * BLOCK_SIZE;
+            int slot = slot(hash(source, offset), mask);
+            for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+                if (index[slot] == 0) {
+                    index[slot] = offset + 1;
+                    break;
+                }
+            }
+        }
+        return index;
+    }
+
+    // Offset of source block with the same bytes as target block at given position, -1 if there is none
+    private static int find(int[] index, int mask, long hash, ByteBuffer source, ByteBuffer target, int position) {
+        int slot = slot(hash, mask);
+        for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+            int offset = index[slot] - 1;
+            if (offset == -1) return -1;
+            if (blockEquals(source, offset, target, position)) return offset;
+        }
+        return -1;
+    }
+
+    private static boolean blockEquals(ByteBuffer source, int sourceOffset, ByteBuffer target, int targetOffset) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (source.get(sourceOffset + i) != target.get(targetOffset + i)) return false;
+        }
+        return true;
+    }
+
+    private static int slot(long hash, int mask) {
+        return (int) ((hash * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private static long hash(ByteBuffer data, int offset) {
+        long hash = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            hash = hash * PRIME + data.get(i);
+        }
+        return hash;
+    }
+
+    private static long power(long base, int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+}
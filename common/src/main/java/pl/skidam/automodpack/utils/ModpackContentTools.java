@@ -12,6 +12,8 @@ import java.util.Objects;
 import static pl.skidam.automodpack.StaticVariables.*;
 
 public class ModpackContentTools {
+    public static final String SHA1_PATH = "/sha1/"; // /sha1/<sha1>, modpack file by its content, stays valid when file is renamed
+
     public static String getFileType(String file, Jsons.ModpackContentFields list) {
         for (Jsons.ModpackContentFields.ModpackContentItems item : list.list) {
             if (item.file.contains(file)) { // compare file absolute path if it contains item.file